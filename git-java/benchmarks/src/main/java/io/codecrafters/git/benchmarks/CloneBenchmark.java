@@ -0,0 +1,124 @@
+package io.codecrafters.git.benchmarks;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end clone against an in-process stand-in for a smart HTTP server that serves a
+ * pre-built synthetic pack, so the numbers exclude the remote's own pack generation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CloneBenchmark {
+  @Param({"500"})
+  int files;
+
+  @Param({"4096"})
+  int fileSize;
+
+  @Param({"0", "10"})
+  int deltaDepth;
+
+  HttpServer server;
+  String url;
+  Path workDir;
+  Path target;
+  int clones;
+
+  @Setup
+  public void setUp() throws Exception {
+    Fixtures.Pack pack = Fixtures.syntheticPack(files, fileSize, deltaDepth);
+    byte[] advertisement = advertisement(pack.commit());
+    byte[] response = uploadPackResponse(pack.bytes());
+
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/repo.git/info/refs", exchange -> {
+      exchange.getResponseHeaders().set("Content-Type", "application/x-git-upload-pack-advertisement");
+      exchange.sendResponseHeaders(200, advertisement.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(advertisement);
+      }
+    });
+    server.createContext("/repo.git/git-upload-pack", exchange -> {
+      try (InputStream in = exchange.getRequestBody()) {
+        in.readAllBytes();
+      }
+      exchange.getResponseHeaders().set("Content-Type", "application/x-git-upload-pack-result");
+      exchange.sendResponseHeaders(200, response.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(response);
+      }
+    });
+    server.start();
+    url = "http://127.0.0.1:" + server.getAddress().getPort() + "/repo.git";
+    workDir = Files.createTempDirectory("git-bench-clone");
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    server.stop(0);
+    Fixtures.deleteTree(workDir);
+  }
+
+  @Setup(Level.Invocation)
+  public void pickTarget() {
+    target = workDir.resolve("clone-" + clones++);
+  }
+
+  @TearDown(Level.Invocation)
+  public void removeTarget() throws Exception {
+    Fixtures.deleteTree(target);
+  }
+
+  @Benchmark
+  public void cloneRepository() throws Throwable {
+    GitInternals.cloneRepository(url, target.toString());
+  }
+
+  private static byte[] advertisement(String commit) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    pktLine(out, "# service=git-upload-pack\n");
+    out.writeBytes("0000".getBytes(StandardCharsets.US_ASCII));
+    pktLine(out, commit + " HEAD\0ofs-delta\n");
+    pktLine(out, commit + " refs/heads/main\n");
+    out.writeBytes("0000".getBytes(StandardCharsets.US_ASCII));
+    return out.toByteArray();
+  }
+
+  private static byte[] uploadPackResponse(byte[] pack) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    pktLine(out, "NAK\n");
+    out.writeBytes(pack);
+    return out.toByteArray();
+  }
+
+  private static void pktLine(ByteArrayOutputStream out, String line) {
+    byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+    out.writeBytes(String.format("%04x", bytes.length + 4).getBytes(StandardCharsets.US_ASCII));
+    out.writeBytes(bytes);
+  }
+}
@@ -0,0 +1,271 @@
+package io.codecrafters.git.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+
+/** Deterministic generated inputs: file contents, delta chains, synthetic packs and work trees. */
+final class Fixtures {
+  private static final int OBJ_COMMIT = 1;
+  private static final int OBJ_TREE = 2;
+  private static final int OBJ_BLOB = 3;
+  private static final int OBJ_OFS_DELTA = 6;
+
+  private Fixtures() {
+  }
+
+  /** Text-like content (short lines of lowercase words) so it compresses like source code. */
+  static byte[] content(int size, long seed) {
+    Random random = new Random(seed);
+    byte[] data = new byte[size];
+    for (int i = 0; i < size; i++) {
+      int r = random.nextInt(40);
+      data[i] = (byte) (r == 0 ? '\n' : r < 6 ? ' ' : 'a' + random.nextInt(26));
+    }
+    return data;
+  }
+
+  /** Same-length copy of base with a few short runs overwritten, like a small edit. */
+  static byte[] mutate(byte[] base, long seed) {
+    Random random = new Random(seed);
+    byte[] target = base.clone();
+    int edits = Math.max(1, base.length / 4096);
+    for (int e = 0; e < edits && base.length > 0; e++) {
+      int at = random.nextInt(base.length);
+      int len = Math.min(base.length - at, 1 + random.nextInt(32));
+      for (int i = 0; i < len; i++) {
+        target[at + i] = (byte) ('A' + random.nextInt(26));
+      }
+    }
+    return target;
+  }
+
+  /** Git delta turning base into target; both have the same length (see {@link #mutate}). */
+  static byte[] encodeDelta(byte[] base, byte[] target) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeVarint(out, base.length);
+    writeVarint(out, target.length);
+
+    int pos = 0;
+    while (pos < target.length) {
+      // Copy the longest aligned run that matches the base, insert everything else
+      int run = 0;
+      while (pos + run < target.length && run < 0xFFFFFF && base[pos + run] == target[pos + run]) {
+        run++;
+      }
+      if (run >= 8) {
+        writeCopy(out, pos, run);
+        pos += run;
+        continue;
+      }
+      int insertEnd = pos;
+      while (insertEnd < target.length && insertEnd - pos < 127) {
+        if (insertEnd + 8 <= target.length
+            && Arrays.equals(base, insertEnd, insertEnd + 8, target, insertEnd, insertEnd + 8)) {
+          break;
+        }
+        insertEnd++;
+      }
+      if (insertEnd == pos) {
+        insertEnd = Math.min(target.length, pos + 1);
+      }
+      out.write(insertEnd - pos);
+      out.write(target, pos, insertEnd - pos);
+      pos = insertEnd;
+    }
+    return out.toByteArray();
+  }
+
+  private static void writeCopy(ByteArrayOutputStream out, int offset, int size) {
+    int cmd = 0x80;
+    ByteArrayOutputStream args = new ByteArrayOutputStream();
+    for (int i = 0; i < 4; i++) {
+      int b = (offset >>> (8 * i)) & 0xFF;
+      if (b != 0) {
+        cmd |= 1 << i;
+        args.write(b);
+      }
+    }
+    for (int i = 0; i < 3; i++) {
+      int b = (size >>> (8 * i)) & 0xFF;
+      if (b != 0) {
+        cmd |= 0x10 << i;
+        args.write(b);
+      }
+    }
+    out.write(cmd);
+    out.writeBytes(args.toByteArray());
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, long value) {
+    while (value >= 0x80) {
+      out.write((int) (value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  /** A pack plus the commit its tree hangs off. */
+  record Pack(byte[] bytes, String commit, int objects) {
+  }
+
+  /**
+   * One commit whose flat tree holds {@code files} chains of {@code deltaDepth + 1} blobs of
+   * {@code fileSize} bytes. Each blob after the first in a chain is an OFS_DELTA on its predecessor.
+   */
+  static Pack syntheticPack(int files, int fileSize, int deltaDepth) {
+    List<byte[]> blobs = new ArrayList<>();
+    List<byte[]> deltas = new ArrayList<>();
+    List<String> names = new ArrayList<>();
+    for (int f = 0; f < files; f++) {
+      byte[] blob = content(fileSize, f);
+      for (int d = 0; d <= deltaDepth; d++) {
+        byte[] next = d == 0 ? blob : mutate(blob, f * 1000L + d);
+        blobs.add(next);
+        deltas.add(d == 0 ? null : encodeDelta(blob, next));
+        names.add(String.format("f%05d_%03d.txt", f, d));
+        blob = next;
+      }
+    }
+
+    ByteArrayOutputStream tree = new ByteArrayOutputStream();
+    for (int i = 0; i < blobs.size(); i++) {
+      tree.writeBytes(("100644 " + names.get(i) + "\0").getBytes(StandardCharsets.UTF_8));
+      tree.writeBytes(objectId("blob", blobs.get(i)));
+    }
+    byte[] treeData = tree.toByteArray();
+    byte[] commitData = ("tree " + hex(objectId("tree", treeData)) + "\n"
+        + "author Bench <bench@example.com> 1700000000 +0000\n"
+        + "committer Bench <bench@example.com> 1700000000 +0000\n"
+        + "\nsynthetic\n").getBytes(StandardCharsets.UTF_8);
+
+    PackWriter pack = new PackWriter();
+    pack.add(OBJ_COMMIT, commitData);
+    pack.add(OBJ_TREE, treeData);
+    long previous = -1;
+    for (int i = 0; i < blobs.size(); i++) {
+      previous = deltas.get(i) == null
+          ? pack.add(OBJ_BLOB, blobs.get(i))
+          : pack.addOfsDelta(previous, deltas.get(i));
+    }
+    return new Pack(pack.finish(), hex(objectId("commit", commitData)), pack.count);
+  }
+
+  /** Write {@code files} files of {@code fileSize} bytes, 64 to a directory. */
+  static void writeWorkTree(Path root, int files, int fileSize) throws IOException {
+    for (int f = 0; f < files; f++) {
+      Path dir = root.resolve(String.format("d%03d", f / 64));
+      Files.createDirectories(dir);
+      Files.write(dir.resolve(String.format("f%05d.txt", f)), content(fileSize, f));
+    }
+  }
+
+  static void deleteTree(Path root) throws IOException {
+    if (!Files.exists(root)) {
+      return;
+    }
+    try (Stream<Path> paths = Files.walk(root)) {
+      for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+        Files.delete(path);
+      }
+    }
+  }
+
+  static byte[] objectId(String type, byte[] data) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      digest.update((type + " " + data.length + "\0").getBytes(StandardCharsets.UTF_8));
+      return digest.digest(data);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static String hex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder();
+    for (byte b : bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return sb.toString();
+  }
+
+  /** Minimal version 2 pack encoder. */
+  private static final class PackWriter {
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    final Deflater deflater = new Deflater();
+    final byte[] buffer = new byte[65536];
+    int count;
+
+    long add(int type, byte[] data) {
+      long offset = 12 + body.size();
+      writeHeader(type, data.length);
+      deflate(data);
+      return offset;
+    }
+
+    long addOfsDelta(long baseOffset, byte[] delta) {
+      long offset = 12 + body.size();
+      writeHeader(OBJ_OFS_DELTA, delta.length);
+
+      // Negative offset, big-endian base-128 with the "+1 per continuation" encoding
+      long distance = offset - baseOffset;
+      byte[] encoded = new byte[10];
+      int pos = encoded.length - 1;
+      encoded[pos] = (byte) (distance & 0x7F);
+      while ((distance >>>= 7) != 0) {
+        distance--;
+        encoded[--pos] = (byte) (0x80 | (distance & 0x7F));
+      }
+      body.write(encoded, pos, encoded.length - pos);
+      deflate(delta);
+      return offset;
+    }
+
+    private void writeHeader(int type, long size) {
+      int b = (type << 4) | (int) (size & 0x0F);
+      size >>>= 4;
+      while (size != 0) {
+        body.write(b | 0x80);
+        b = (int) (size & 0x7F);
+        size >>>= 7;
+      }
+      body.write(b);
+      count++;
+    }
+
+    private void deflate(byte[] data) {
+      deflater.reset();
+      deflater.setInput(data);
+      deflater.finish();
+      while (!deflater.finished()) {
+        body.write(buffer, 0, deflater.deflate(buffer));
+      }
+    }
+
+    byte[] finish() {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      out.writeBytes("PACK".getBytes(StandardCharsets.US_ASCII));
+      out.writeBytes(new byte[] {0, 0, 0, 2,
+          (byte) (count >>> 24), (byte) (count >>> 16), (byte) (count >>> 8), (byte) count});
+      out.writeBytes(body.toByteArray());
+      try {
+        out.writeBytes(MessageDigest.getInstance("SHA-1").digest(out.toByteArray()));
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e);
+      }
+      deflater.end();
+      return out.toByteArray();
+    }
+  }
+}
@@ -0,0 +1,109 @@
+package io.codecrafters.git.benchmarks;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Handles on the package-private helpers in Main. Main lives in the unnamed package, which
+ * JMH-generated code cannot import, so the benchmarks reach it through a private lookup.
+ */
+final class GitInternals {
+  private static final MethodHandle APPLY_DELTA;
+  private static final MethodHandle BYTES_TO_HEX;
+  private static final MethodHandle CREATE_BLOB;
+  private static final MethodHandle WRITE_TREE;
+  private static final MethodHandle CLONE_REPOSITORY;
+  private static final MethodHandle NEW_CHECKPOINT;
+  private static final MethodHandle NEW_SPOOL;
+  private static final MethodHandle NEW_SCANNER;
+  private static final MethodHandle SCANNER_READ_BYTES;
+  private static final MethodHandle READ_PACK_OBJECT;
+
+  static {
+    try {
+      Class<?> main = Class.forName("Main");
+      Class<?> checkpoint = Class.forName("Main$CloneCheckpoint");
+      Class<?> spool = Class.forName("Main$PackSpool");
+      Class<?> scanner = Class.forName("Main$PackScanner");
+      Class<?> packObject = Class.forName("Main$PackObject");
+      MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(main, MethodHandles.lookup());
+
+      APPLY_DELTA = lookup.findStatic(main, "applyDelta",
+          MethodType.methodType(byte[].class, byte[].class, byte[].class));
+      BYTES_TO_HEX = lookup.findStatic(main, "bytesToHex",
+          MethodType.methodType(String.class, byte[].class));
+      CREATE_BLOB = lookup.findStatic(main, "createBlob",
+          MethodType.methodType(String.class, File.class, File.class));
+      WRITE_TREE = lookup.findStatic(main, "writeTree",
+          MethodType.methodType(String.class, File.class, File.class));
+      // A plain full clone: not sparse, no reference repository
+      CLONE_REPOSITORY = MethodHandles.insertArguments(lookup.findStatic(main, "cloneRepository",
+          MethodType.methodType(void.class, String.class, String.class, boolean.class, String.class)),
+          2, false, null);
+      NEW_CHECKPOINT = lookup.findConstructor(checkpoint,
+          MethodType.methodType(void.class, File.class))
+          .asType(MethodType.methodType(Object.class, File.class));
+      NEW_SPOOL = lookup.findConstructor(spool,
+          MethodType.methodType(void.class, File.class, checkpoint))
+          .asType(MethodType.methodType(OutputStream.class, File.class, Object.class));
+      NEW_SCANNER = lookup.findConstructor(scanner,
+          MethodType.methodType(void.class, spool))
+          .asType(MethodType.methodType(AutoCloseable.class, Object.class));
+      SCANNER_READ_BYTES = lookup.findVirtual(scanner, "readBytes",
+          MethodType.methodType(byte[].class, int.class))
+          .asType(MethodType.methodType(byte[].class, Object.class, int.class));
+      READ_PACK_OBJECT = lookup.findStatic(main, "readPackObject",
+          MethodType.methodType(packObject, scanner))
+          .asType(MethodType.methodType(Object.class, Object.class));
+    } catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private GitInternals() {
+  }
+
+  static byte[] applyDelta(byte[] base, byte[] delta) throws Throwable {
+    return (byte[]) APPLY_DELTA.invokeExact(base, delta);
+  }
+
+  static String bytesToHex(byte[] bytes) throws Throwable {
+    return (String) BYTES_TO_HEX.invokeExact(bytes);
+  }
+
+  static String createBlob(File file, File gitDir) throws Throwable {
+    return (String) CREATE_BLOB.invokeExact(file, gitDir);
+  }
+
+  static String writeTree(File directory, File gitDir) throws Throwable {
+    return (String) WRITE_TREE.invokeExact(directory, gitDir);
+  }
+
+  static void cloneRepository(String url, String targetDir) throws Throwable {
+    CLONE_REPOSITORY.invokeExact(url, targetDir);
+  }
+
+  /** Spool a complete pack to the given file, the way the clone network stage does. */
+  static Object spoolPack(File spoolFile, byte[] pack) throws Throwable {
+    Object checkpoint = (Object) NEW_CHECKPOINT.invokeExact(new File(spoolFile.getPath() + ".checkpoint"));
+    OutputStream spool = (OutputStream) NEW_SPOOL.invokeExact(spoolFile, checkpoint);
+    spool.write(pack);
+    spool.close();
+    return spool;
+  }
+
+  static AutoCloseable newScanner(Object spool) throws Throwable {
+    return (AutoCloseable) NEW_SCANNER.invokeExact(spool);
+  }
+
+  static byte[] readBytes(Object scanner, int n) throws Throwable {
+    return (byte[]) SCANNER_READ_BYTES.invokeExact(scanner, n);
+  }
+
+  static Object readPackObject(Object scanner) throws Throwable {
+    return (Object) READ_PACK_OBJECT.invokeExact(scanner);
+  }
+}
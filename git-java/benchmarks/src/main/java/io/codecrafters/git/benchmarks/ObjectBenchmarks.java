@@ -0,0 +1,69 @@
+package io.codecrafters.git.benchmarks;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Single-object paths: delta application, hex encoding and blob hashing/storage. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ObjectBenchmarks {
+  @Param({"1024", "65536", "1048576"})
+  int size;
+
+  byte[] base;
+  byte[] delta;
+  byte[] id;
+  Path workDir;
+  File blobFile;
+  File gitDir;
+
+  @Setup
+  public void setUp() throws Exception {
+    base = Fixtures.content(size, 1);
+    delta = Fixtures.encodeDelta(base, Fixtures.mutate(base, 2));
+    id = Fixtures.objectId("blob", base);
+
+    workDir = Files.createTempDirectory("git-bench-object");
+    blobFile = workDir.resolve("blob.txt").toFile();
+    Files.write(blobFile.toPath(), base);
+    gitDir = workDir.resolve(".git").toFile();
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    Fixtures.deleteTree(workDir);
+  }
+
+  @Benchmark
+  public byte[] applyDelta() throws Throwable {
+    return GitInternals.applyDelta(base, delta);
+  }
+
+  @Benchmark
+  public String bytesToHex() throws Throwable {
+    return GitInternals.bytesToHex(id);
+  }
+
+  @Benchmark
+  public String createBlob() throws Throwable {
+    return GitInternals.createBlob(blobFile, gitDir);
+  }
+}
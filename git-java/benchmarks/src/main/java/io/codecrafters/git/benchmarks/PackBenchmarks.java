@@ -0,0 +1,83 @@
+package io.codecrafters.git.benchmarks;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Pack parsing (object headers plus inflate) and delta-chain application over a synthetic pack. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PackBenchmarks {
+  @Param({"1000"})
+  int files;
+
+  @Param({"4096"})
+  int fileSize;
+
+  @Param({"0", "10", "50"})
+  int deltaDepth;
+
+  Fixtures.Pack pack;
+  Path workDir;
+  Object spool;
+  byte[] chainBase;
+  byte[][] chain;
+
+  @Setup
+  public void setUp() throws Throwable {
+    pack = Fixtures.syntheticPack(files, fileSize, deltaDepth);
+    workDir = Files.createTempDirectory("git-bench-pack");
+    spool = GitInternals.spoolPack(workDir.resolve("incoming.pack").toFile(), pack.bytes());
+
+    chainBase = Fixtures.content(fileSize, 7);
+    chain = new byte[deltaDepth][];
+    byte[] previous = chainBase;
+    for (int d = 0; d < deltaDepth; d++) {
+      byte[] next = Fixtures.mutate(previous, d);
+      chain[d] = Fixtures.encodeDelta(previous, next);
+      previous = next;
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    Fixtures.deleteTree(workDir);
+  }
+
+  @Benchmark
+  public void parsePack(Blackhole blackhole) throws Throwable {
+    try (AutoCloseable scanner = GitInternals.newScanner(spool)) {
+      GitInternals.readBytes(scanner, 12);
+      for (int i = 0; i < pack.objects(); i++) {
+        blackhole.consume(GitInternals.readPackObject(scanner));
+      }
+    }
+  }
+
+  @Benchmark
+  public byte[] applyDeltaChain() throws Throwable {
+    byte[] data = chainBase;
+    for (byte[] delta : chain) {
+      data = GitInternals.applyDelta(data, delta);
+    }
+    return data;
+  }
+}
@@ -0,0 +1,53 @@
+package io.codecrafters.git.benchmarks;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** write-tree over a generated work tree of N files of M bytes: hashing, deflate and tree serialization. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TreeBenchmarks {
+  @Param({"100", "1000"})
+  int files;
+
+  @Param({"1024", "16384"})
+  int fileSize;
+
+  Path workDir;
+  File gitDir;
+
+  @Setup
+  public void setUp() throws Exception {
+    workDir = Files.createTempDirectory("git-bench-tree");
+    Fixtures.writeWorkTree(workDir, files, fileSize);
+    gitDir = workDir.resolve(".git").toFile();
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    Fixtures.deleteTree(workDir);
+  }
+
+  @Benchmark
+  public String writeTree() throws Throwable {
+    return GitInternals.writeTree(workDir.toFile(), gitDir);
+  }
+}
@@ -3,32 +3,132 @@
  *  From CodeCrafters.io build-your-own-git (Java)
  */
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.PushbackInputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.invoke.VarHandle;
 import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.StandardProtocolFamily;
+import java.net.URI;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
 
+// Stats.Phase resources only time the block they enclose, so they are never referenced in it
+@SuppressWarnings("try")
 public class Main {
   public static void main(String[] args){    
+    args = Stats.parseFlags(args);
+    try {
+      run(args);
+    } finally {
+      Stats.report();
+    }
+    if (EXIT_STATUS.get() != 0) {
+      System.exit(EXIT_STATUS.get());
+    }
+  }
+  
+  // Exit status for commands that answer through it, like merge-base --is-ancestor; per thread
+  // so concurrent serve requests each report their own
+  static final ThreadLocal<Integer> EXIT_STATUS = ThreadLocal.withInitial(() -> 0);
+  
+  static void run(String[] args) {
     final String command = args[0];
     
     switch (command) {
@@ -55,35 +155,30 @@ public class Main {
         }
         
         String hash = args[2];
-        String dirName = hash.substring(0, 2);
-        String fileName = hash.substring(2);
-        File objectFile = new File(".git/objects/" + dirName + "/" + fileName);
         
-        try (FileInputStream fis = new FileInputStream(objectFile);
-             InflaterInputStream iis = new InflaterInputStream(fis)) {
-          
-          byte[] decompressed = iis.readAllBytes();
-          
-          // Find null byte that separates header from content
-          int nullIndex = -1;
-          for (int i = 0; i < decompressed.length; i++) {
-            if (decompressed[i] == 0) {
-              nullIndex = i;
-              break;
-            }
-          }
-          
-          if (nullIndex == -1) {
-            throw new RuntimeException("Invalid object file format");
+        // Loose or packed
+        byte[] decompressed = loadRawObjectFromDisk(new File(".git"), hash);
+        if (decompressed == null) {
+          throw new RuntimeException("Object not found: " + hash);
+        }
+        
+        // Find null byte that separates header from content
+        int nullIndex = -1;
+        for (int i = 0; i < decompressed.length; i++) {
+          if (decompressed[i] == 0) {
+            nullIndex = i;
+            break;
           }
-          
-          // Extract everything after the null byte
-          byte[] content = Arrays.copyOfRange(decompressed, nullIndex + 1, decompressed.length);
-          
-          System.out.print(new String(content));
-        } catch (IOException e) {
-          throw new RuntimeException(e);
         }
+        
+        if (nullIndex == -1) {
+          throw new RuntimeException("Invalid object file format");
+        }
+        
+        // Extract everything after the null byte
+        byte[] content = Arrays.copyOfRange(decompressed, nullIndex + 1, decompressed.length);
+        
+        System.out.print(new String(content));
       }
       // hash-object -w <file>
       case "hash-object" -> {
@@ -112,25 +207,10 @@ public class Main {
           MessageDigest digest = MessageDigest.getInstance("SHA-1");
           byte[] hashBytes = digest.digest(blobData);
           
-          // Convert hash to hex string
-          StringBuilder hashHex = new StringBuilder();
-          for (byte b : hashBytes) {
-            hashHex.append(String.format("%02x", b));
-          }
-          String hash = hashHex.toString();
-          
-          // Create directory structure
-          String dirName = hash.substring(0, 2);
-          String fileName = hash.substring(2);
-          File objectDir = new File(".git/objects/" + dirName);
-          objectDir.mkdirs();
+          String hash = bytesToHex(hashBytes);
           
           // Write compressed blob to file
-          File objectFile = new File(objectDir, fileName);
-          try (FileOutputStream fos = new FileOutputStream(objectFile);
-               DeflaterOutputStream dos = new DeflaterOutputStream(fos)) {
-            dos.write(blobData);
-          }
+          writeLooseObject(new File(".git"), hash, blobData);
           
           System.out.println(hash);
           
@@ -138,86 +218,75 @@ public class Main {
           throw new RuntimeException(e);
         }
       }
-      // ls-tree --name-only <tree_sha>
+      // ls-tree [-r] [-t] [-l] [--name-only] <tree-ish>
       case "ls-tree" -> {
-        if (args.length < 3 || !args[1].equals("--name-only")) {
-          System.out.println("Usage: ls-tree --name-only <tree_sha>");
+        boolean recursive = false;
+        boolean showTrees = false;
+        boolean sizes = false;
+        boolean nameOnly = false;
+        String rev = null;
+        for (int i = 1; i < args.length; i++) {
+          switch (args[i]) {
+            case "-r" -> recursive = true;
+            case "-t" -> showTrees = true;
+            case "-l", "--long" -> sizes = true;
+            case "--name-only", "--name-status" -> nameOnly = true;
+            default -> rev = args[i];
+          }
+        }
+        if (rev == null) {
+          System.out.println("Usage: ls-tree [-r] [-t] [-l] [--name-only] <tree-ish>");
           return;
         }
         
-        String hash = args[2];
-        String dirName = hash.substring(0, 2);
-        String fileName = hash.substring(2);
-        File objectFile = new File(".git/objects/" + dirName + "/" + fileName);
-        
-        try (FileInputStream fis = new FileInputStream(objectFile);
-             InflaterInputStream iis = new InflaterInputStream(fis)) {
-          
-          byte[] decompressed = iis.readAllBytes();
-          
-          // Find null byte that separates header from content
-          int nullIndex = -1;
-          for (int i = 0; i < decompressed.length; i++) {
-            if (decompressed[i] == 0) {
-              nullIndex = i;
-              break;
-            }
-          }
-          
-          if (nullIndex == -1) {
-            throw new RuntimeException("Invalid tree object format");
-          }
-          
-          // Parse tree entries
-          int pos = nullIndex + 1;
-          while (pos < decompressed.length) {
-            int nameStart = pos;
-            while (nameStart < decompressed.length && decompressed[nameStart] != ' ') {
-              nameStart++;
-            }
-            nameStart++;
-            
-            int nameEnd = nameStart;
-            while (nameEnd < decompressed.length && decompressed[nameEnd] != 0) {
-              nameEnd++;
-            }
-            
-            String name = new String(Arrays.copyOfRange(decompressed, nameStart, nameEnd));
-            System.out.println(name);
-            
-            // Skip the 20-byte SHA-1 hash
-            pos = nameEnd + 1 + 20;
-          }
-          
+        try (Stats.Phase phase = Stats.begin("ls-tree")) {
+          File gitDir = new File(".git");
+          OutputStream out = new BufferedOutputStream(System.out, 1 << 16);
+          listTree(gitDir, loadTree(gitDir, resolveTree(gitDir, rev)), new byte[0], recursive, !recursive || showTrees,
+            nameOnly, sizes, out);
+          out.flush();
         } catch (IOException e) {
           throw new RuntimeException(e);
         }
       }
       // write-tree
       case "write-tree" -> {
-        try {
-          String hash = writeTree(new File("."));
+        try (Stats.Phase phase = Stats.begin("write-tree")) {
+          String hash = writeTree(new File("."), new File(".git"));
           System.out.println(hash);
         } catch (IOException | NoSuchAlgorithmException e) {
           throw new RuntimeException(e);
         }
       }
-      // commit-tree <tree_sha> -p <commit_sha> -m <message>
+      // commit-tree <tree_sha> [-p <commit_sha>]... -m <message>
       case "commit-tree" -> {
-        if (args.length < 6 || !args[2].equals("-p") || !args[4].equals("-m")) {
-          System.out.println("Usage: commit-tree <tree_sha> -p <commit_sha> -m <message>");
+        // Any number of parents; none makes a root commit
+        List<String> parents = new ArrayList<>();
+        String message = null;
+        boolean valid = args.length >= 4 && args.length % 2 == 0;
+        for (int i = 2; valid && i < args.length; i += 2) {
+          if (args[i].equals("-p")) {
+            parents.add(args[i + 1]);
+          } else if (args[i].equals("-m")) {
+            message = args[i + 1];
+          } else {
+            valid = false;
+          }
+        }
+        if (!valid || message == null) {
+          System.out.println("Usage: commit-tree <tree_sha> [-p <commit_sha>]... -m <message>");
           return;
         }
         
         String treeSha = args[1];
-        String parentSha = args[3];
-        String message = args[5];
         
         try {
           // Build commit content
           StringBuilder content = new StringBuilder();
           content.append("tree ").append(treeSha).append("\n");
-          content.append("parent ").append(parentSha).append("\n");
+          for (String parentSha : parents) {
+            content.append("parent ").append(parentSha).append("\n");
+          }
           
           // Hardcoded author and committer (for simplicity)
           String authorLine = "author John Doe <john@example.com> 1234567890 +0000\n";
@@ -240,23 +309,10 @@ public class Main {
           MessageDigest digest = MessageDigest.getInstance("SHA-1");
           byte[] hashBytes = digest.digest(commitData);
           
-          StringBuilder hashHex = new StringBuilder();
-          for (byte b : hashBytes) {
-            hashHex.append(String.format("%02x", b));
-          }
-          String hash = hashHex.toString();
-          
-          String dirName = hash.substring(0, 2);
-          String fileName = hash.substring(2);
-          File objectDir = new File(".git/objects/" + dirName);
-          objectDir.mkdirs();
+          String hash = bytesToHex(hashBytes);
           
           // Write compressed commit to file
-          File objectFile = new File(objectDir, fileName);
-          try (FileOutputStream fos = new FileOutputStream(objectFile);
-               DeflaterOutputStream dos = new DeflaterOutputStream(fos)) {
-            dos.write(commitData);
-          }
+          writeLooseObject(new File(".git"), hash, commitData);
           
           System.out.println(hash);
           
@@ -264,22 +320,424 @@ public class Main {
           throw new RuntimeException(e);
         }
       }
-      // clone <url> <directory>
+      // clone [--sparse] [--reference <repository>] <url | path> <directory>
       case "clone" -> {
-        if (args.length < 3) {
-          System.out.println("Usage: clone <url> <directory>");
+        boolean sparse = false;
+        String reference = null;
+        List<String> positional = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+          if (args[i].equals("--sparse")) {
+            sparse = true;
+          } else if (args[i].equals("--reference") && i + 1 < args.length) {
+            reference = args[++i];
+          } else {
+            positional.add(args[i]);
+          }
+        }
+        if (positional.size() != 2) {
+          System.out.println("Usage: clone [--sparse] [--reference <repository>] <url | path> <directory>");
+          return;
+        }
+        
+        String repoUrl = positional.get(0);
+        String targetDir = positional.get(1);
+        
+        try {
+          cloneRepository(repoUrl, targetDir, sparse, reference);
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+      // sparse-checkout (set | add) <directory>... | sparse-checkout list
+      case "sparse-checkout" -> {
+        String subcommand = args.length > 1 ? args[1] : "";
+        if (!subcommand.equals("set") && !subcommand.equals("add") && !subcommand.equals("list")) {
+          System.out.println("Usage: sparse-checkout (set | add) <directory>... | sparse-checkout list");
+          return;
+        }
+        
+        File gitDir = new File(".git");
+        try {
+          SparseCheckout current = SparseCheckout.load(gitDir);
+          if (subcommand.equals("list")) {
+            if (current == null) {
+              throw new RuntimeException("This worktree is not sparse");
+            }
+            current.recursive.forEach(System.out::println);
+            return;
+          }
+          
+          List<String> directories = new ArrayList<>(Arrays.asList(args).subList(2, args.length));
+          if (subcommand.equals("add") && current != null) {
+            directories.addAll(current.recursive);
+          }
+          SparseCheckout sparse = new SparseCheckout(directories);
+          sparse.save(gitDir);
+          
+          String commit = resolveRevision(gitDir, "HEAD");
+          try (Stats.Phase phase = Stats.begin("checkout")) {
+            updateSparseCheckout(new File("."), gitDir, Commit.parse(loadObjectFromDisk(gitDir, commit), 0).tree, "", sparse);
+          }
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+      // mirror [--jobs=<n>] [--per-host=<n>] [--cpu=<n>] <manifest>
+      case "mirror" -> {
+        int jobs = MIRROR_JOBS;
+        int perHost = MIRROR_PER_HOST;
+        int cpus = Runtime.getRuntime().availableProcessors();
+        String manifest = null;
+        for (int i = 1; i < args.length; i++) {
+          String arg = args[i];
+          if (arg.startsWith("--jobs=")) {
+            jobs = Integer.parseInt(arg.substring("--jobs=".length()));
+          } else if (arg.startsWith("--per-host=")) {
+            perHost = Integer.parseInt(arg.substring("--per-host=".length()));
+          } else if (arg.startsWith("--cpu=")) {
+            cpus = Integer.parseInt(arg.substring("--cpu=".length()));
+          } else {
+            manifest = arg;
+          }
+        }
+        if (manifest == null) {
+          System.out.println("Usage: mirror [--jobs=<n>] [--per-host=<n>] [--cpu=<n>] <manifest>");
+          return;
+        }
+        
+        try (Stats.Phase phase = Stats.begin("mirror");
+             Mirror mirror = new Mirror(perHost, cpus)) {
+          if (!mirror.mirrorAll(Mirror.readManifest(new File(manifest)), jobs)) {
+            EXIT_STATUS.set(1);
+          }
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      // commit-graph write
+      case "commit-graph" -> {
+        if (args.length < 2 || !args[1].equals("write")) {
+          System.out.println("Usage: commit-graph write");
+          return;
+        }
+        
+        try (Stats.Phase phase = Stats.begin("commit-graph")) {
+          int count = CommitGraph.write(new File(".git"));
+          System.out.println("Wrote commit-graph with " + count + " commits");
+        } catch (IOException | NoSuchAlgorithmException e) {
+          throw new RuntimeException(e);
+        }
+      }
+      // rev-list [--count] [-n <n>] <commit>... [^<commit>...]
+      // log [--oneline] [-n <n>] [<commit>...] [^<commit>...]
+      case "rev-list", "log" -> {
+        boolean count = false;
+        boolean oneline = false;
+        int limit = -1;
+        List<String> revs = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+          String arg = args[i];
+          if (arg.equals("--count")) {
+            count = true;
+          } else if (arg.equals("--oneline")) {
+            oneline = true;
+          } else if (arg.equals("-n") && i + 1 < args.length) {
+            limit = Integer.parseInt(args[++i]);
+          } else if (arg.startsWith("--max-count=")) {
+            limit = Integer.parseInt(arg.substring("--max-count=".length()));
+          } else {
+            revs.add(arg);
+          }
+        }
+        if (revs.isEmpty()) {
+          if (command.equals("rev-list")) {
+            System.out.println("Usage: rev-list [--count] [-n <n>] <commit>... [^<commit>...]");
+            return;
+          }
+          revs.add("HEAD");
+        }
+        
+        try (Stats.Phase phase = Stats.begin(command)) {
+          File gitDir = new File(".git");
+          CommitIndex index = new CommitIndex(gitDir);
+          List<Integer> include = new ArrayList<>();
+          List<Integer> exclude = new ArrayList<>();
+          for (String rev : revs) {
+            if (rev.startsWith("^")) {
+              exclude.add(index.resolve(rev.substring(1)));
+            } else {
+              include.add(index.resolve(rev));
+            }
+          }
+          
+          BufferedWriter out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+          if (count) {
+            long[] total = new long[1];
+            index.revList(include, exclude, limit, id -> total[0]++);
+            out.write(total[0] + "\n");
+          } else if (command.equals("rev-list")) {
+            index.revList(include, exclude, limit, id -> {
+              try {
+                out.write(index.hash(id));
+                out.write('\n');
+              } catch (IOException e) {
+                throw new RuntimeException(e);
+              }
+            });
+          } else {
+            boolean[] first = { true };
+            boolean singleLine = oneline;
+            index.revList(include, exclude, limit, id -> {
+              try {
+                printLogEntry(out, gitDir, index.hash(id), singleLine, first[0]);
+                first[0] = false;
+              } catch (IOException e) {
+                throw new RuntimeException(e);
+              }
+            });
+          }
+          out.flush();
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+      // merge-base [--all | --is-ancestor] <commit> <commit>
+      case "merge-base" -> {
+        boolean all = args.length > 1 && args[1].equals("--all");
+        boolean isAncestor = args.length > 1 && args[1].equals("--is-ancestor");
+        int first = all || isAncestor ? 2 : 1;
+        if (args.length != first + 2) {
+          System.out.println("Usage: merge-base [--all | --is-ancestor] <commit> <commit>");
+          return;
+        }
+        
+        try (Stats.Phase phase = Stats.begin("merge-base")) {
+          CommitIndex index = new CommitIndex(new File(".git"));
+          int a = index.resolve(args[first]);
+          int b = index.resolve(args[first + 1]);
+          
+          if (isAncestor) {
+            EXIT_STATUS.set(index.isAncestor(a, b) ? 0 : 1);
+            return;
+          }
+          
+          List<Integer> bases = index.mergeBases(a, b);
+          if (bases.isEmpty()) {
+            EXIT_STATUS.set(1);
+          }
+          for (int base : all ? bases : bases.subList(0, Math.min(1, bases.size()))) {
+            System.out.println(index.hash(base));
+          }
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+      // diff-tree [-r] [--root] [--name-status | --name-only] <tree-ish> [<tree-ish>]
+      case "diff-tree" -> {
+        boolean recursive = false;
+        boolean root = false;
+        String format = "raw";
+        List<String> revs = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+          switch (args[i]) {
+            case "-r" -> recursive = true;
+            case "--root" -> root = true;
+            case "--name-status" -> format = "name-status";
+            case "--name-only" -> format = "name-only";
+            default -> revs.add(args[i]);
+          }
+        }
+        if (revs.isEmpty() || revs.size() > 2) {
+          System.out.println("Usage: diff-tree [-r] [--root] [--name-status | --name-only] <tree-ish> [<tree-ish>]");
           return;
         }
         
-        String repoUrl = args[1];
-        String targetDir = args[2];
+        try (Stats.Phase phase = Stats.begin("diff-tree")) {
+          File gitDir = new File(".git");
+          BufferedWriter out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+          String oldTree;
+          String newTree;
+          if (revs.size() == 2) {
+            oldTree = resolveTree(gitDir, revs.get(0));
+            newTree = resolveTree(gitDir, revs.get(1));
+          } else {
+            // One commit: compare it with its parent, under a line naming the commit. Like git,
+            // merges print nothing and root commits only with --root.
+            CommitIndex index = new CommitIndex(gitDir);
+            int commit = index.resolve(revs.get(0));
+            int[] parents = index.parents(commit);
+            if (parents.length > 1 || parents.length == 0 && !root) return;
+            
+            oldTree = parents.length == 0 ? null : index.tree(parents[0]);
+            newTree = index.tree(commit);
+            out.write(index.hash(commit) + "\n");
+          }
+          
+          String style = format;
+          diffTrees(gitDir, oldTree == null ? new byte[0] : loadTree(gitDir, oldTree), loadTree(gitDir, newTree), "",
+              recursive, (path, oldMode, oldId, newMode, newId) -> {
+            char status = oldId == null ? 'A'
+              : newId == null ? 'D'
+              : (oldMode & 0170000) != (newMode & 0170000) ? 'T'
+              : 'M';
+            switch (style) {
+              case "name-only" -> out.write(path + "\n");
+              case "name-status" -> out.write(status + "\t" + path + "\n");
+              default -> out.write(String.format(":%06o %06o %s %s %c\t%s\n", oldMode, newMode,
+                oldId == null ? ZERO_ID : oldId, newId == null ? ZERO_ID : newId, status, path));
+            }
+          });
+          out.flush();
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+      // push [-f] <url> [<src>[:<dst>]]
+      case "push" -> {
+        boolean force = false;
+        List<String> positional = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+          if (args[i].equals("-f") || args[i].equals("--force")) {
+            force = true;
+          } else {
+            positional.add(args[i]);
+          }
+        }
+        if (positional.isEmpty() || positional.size() > 2) {
+          System.out.println("Usage: push [-f] <url> [<src>[:<dst>]]");
+          return;
+        }
+        
+        try {
+          // Default to the current branch under the same name
+          String refspec = positional.size() > 1 ? positional.get(1) : null;
+          if (refspec == null) {
+            String head = Files.readString(new File(".git/HEAD").toPath()).trim();
+            if (!head.startsWith("ref: ")) {
+              throw new RuntimeException("HEAD is detached; name the branch to push");
+            }
+            refspec = head.substring(5);
+          }
+          if (refspec.startsWith("+")) {
+            force = true;
+            refspec = refspec.substring(1);
+          }
+          
+          int colon = refspec.indexOf(':');
+          String src = colon < 0 ? refspec : refspec.substring(0, colon);
+          String dst = colon < 0 ? src : refspec.substring(colon + 1);
+          if (!dst.startsWith("refs/")) {
+            boolean isTag = src.startsWith("refs/tags/") || new File(".git/refs/tags/" + src).exists();
+            dst = (isTag ? "refs/tags/" : "refs/heads/") + dst;
+          }
+          pushRepository(positional.get(0), src, dst, force);
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+      // repack [-a] [-d] [--window=<n>] [--depth=<n>] [--threads=<n>]
+      // gc
+      case "repack", "gc" -> {
+        boolean all = command.equals("gc");
+        boolean prune = command.equals("gc");
+        int window = REPACK_WINDOW;
+        int depth = REPACK_DEPTH;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i = 1; i < args.length; i++) {
+          String arg = args[i];
+          if (arg.equals("-a")) {
+            all = true;
+          } else if (arg.equals("-d")) {
+            prune = true;
+          } else if (arg.equals("-ad")) {
+            all = true;
+            prune = true;
+          } else if (arg.startsWith("--window=")) {
+            window = Integer.parseInt(arg.substring("--window=".length()));
+          } else if (arg.startsWith("--depth=")) {
+            depth = Integer.parseInt(arg.substring("--depth=".length()));
+          } else if (arg.startsWith("--threads=")) {
+            threads = Math.max(1, Integer.parseInt(arg.substring("--threads=".length())));
+          } else {
+            System.out.println("Usage: " + command + " [-a] [-d] [--window=<n>] [--depth=<n>] [--threads=<n>]");
+            return;
+          }
+        }
         
         try {
-          cloneRepository(repoUrl, targetDir);
+          File gitDir = new File(".git");
+          if (repack(gitDir, all, prune, window, depth, threads) == null) {
+            System.out.println("Nothing new to pack.");
+          }
+          
+          // gc also refreshes the commit-graph
+          if (command.equals("gc")) {
+            try (Stats.Phase phase = Stats.begin("commit-graph")) {
+              CommitGraph.write(gitDir);
+            }
+          }
         } catch (Exception e) {
           throw new RuntimeException(e);
         }
       }
+      // fast-import [--quiet] [--import-marks=<file>] [--export-marks=<file>] < <stream>
+      case "fast-import" -> {
+        boolean quiet = false;
+        String importMarks = null;
+        String exportMarks = null;
+        for (int i = 1; i < args.length; i++) {
+          String arg = args[i];
+          if (arg.equals("--quiet")) {
+            quiet = true;
+          } else if (arg.startsWith("--import-marks=")) {
+            importMarks = arg.substring("--import-marks=".length());
+          } else if (arg.startsWith("--export-marks=")) {
+            exportMarks = arg.substring("--export-marks=".length());
+          } else {
+            System.out.println("Usage: fast-import [--quiet] [--import-marks=<file>] [--export-marks=<file>]");
+            return;
+          }
+        }
+        
+        try (Stats.Phase phase = Stats.begin("fast-import");
+             FastImport importer = new FastImport(new File(".git"), System.in)) {
+          if (importMarks != null) {
+            importer.importMarks(new File(importMarks));
+          }
+          importer.run();
+          File pack = importer.finish();
+          importer.updateRefs();
+          if (exportMarks != null) {
+            importer.exportMarks(new File(exportMarks));
+          }
+          if (!quiet) {
+            System.err.println("Imported " + importer.objects + " objects (" + importer.duplicates + " duplicates)"
+              + (pack == null ? "" : " into " + pack.getName()));
+          }
+        } catch (IOException | NoSuchAlgorithmException e) {
+          throw new RuntimeException(e);
+        }
+      }
+      // serve [--socket <path>]
+      case "serve" -> {
+        String socketPath = null;
+        if (args.length == 3 && args[1].equals("--socket")) {
+          socketPath = args[2];
+        } else if (args.length != 1) {
+          System.out.println("Usage: serve [--socket <path>]");
+          return;
+        }
+        
+        try {
+          Server.serve(socketPath);
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
       default -> System.out.println("Unknown command: " + command);
     }
   }
@@ -289,21 +747,24 @@ public class Main {
     String mode;
     String name;
     String hash;
+    byte[] sortKey;
     
     TreeEntry(String mode, String name, String hash) {
       this.mode = mode;
       this.name = name;
       this.hash = hash;
+      // Git's tree order compares UTF-8 bytes, with a tree's name as if it ended in '/'
+      this.sortKey = (mode.equals("40000") ? name + "/" : name).getBytes(StandardCharsets.UTF_8);
     }
     
     @Override
     public int compareTo(TreeEntry other) {
-      return this.name.compareTo(other.name);
+      return Arrays.compareUnsigned(sortKey, other.sortKey);
     }
   }
   
   // Create a blob object from a file and return its hash
-  static String createBlob(File file) throws IOException, NoSuchAlgorithmException {
+  static String createBlob(File file, File gitDir) throws IOException, NoSuchAlgorithmException {
     byte[] fileContent = Files.readAllBytes(file.toPath());
     
     String header = "blob " + fileContent.length + "\0";
@@ -316,28 +777,44 @@ public class Main {
     MessageDigest digest = MessageDigest.getInstance("SHA-1");
     byte[] hashBytes = digest.digest(blobData);
     
-    StringBuilder hashHex = new StringBuilder();
-    for (byte b : hashBytes) {
-      hashHex.append(String.format("%02x", b));
-    }
-    String hash = hashHex.toString();
+    String hash = bytesToHex(hashBytes);
+    
+    writeLooseObject(gitDir, hash, blobData);
     
-    String dirName = hash.substring(0, 2);
-    String fileName = hash.substring(2);
-    File objectDir = new File(".git/objects/" + dirName);
+    return hash;
+  }
+  
+  // Write a full object (header and content) as a zlib-compressed loose object
+  static void writeLooseObject(File gitDir, String hash, byte[] fullObject) throws IOException {
+    File objectDir = new File(gitDir, "objects/" + hash.substring(0, 2));
     objectDir.mkdirs();
     
-    File objectFile = new File(objectDir, fileName);
-    try (FileOutputStream fos = new FileOutputStream(objectFile);
-         DeflaterOutputStream dos = new DeflaterOutputStream(fos)) {
-      dos.write(blobData);
-    }
+    File objectFile = new File(objectDir, hash.substring(2));
+    if (objectFile.exists()) return;
     
-    return hash;
+    // Write under a temporary name and rename into place, so concurrent writers of the same
+    // object (serve requests) never expose a partial file
+    File tmpFile = File.createTempFile("tmp_obj_", null, objectDir);
+    Deflater deflater = new Deflater();
+    try (FileOutputStream fos = new FileOutputStream(tmpFile);
+         DeflaterOutputStream dos = new DeflaterOutputStream(fos, deflater)) {
+      dos.write(fullObject);
+    } finally {
+      Stats.DEFLATE_IN.add(deflater.getBytesRead());
+      Stats.DEFLATE_OUT.add(deflater.getBytesWritten());
+      deflater.end();
+    }
+    Files.move(tmpFile.toPath(), objectFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+  }
+  
+  // Recursively write a tree object and return its hash. Ignored files are left out and ignored
+  // directories are never listed; directories left with nothing to track are dropped, as in git.
+  static String writeTree(File directory, File gitDir) throws IOException, NoSuchAlgorithmException {
+    return writeTree(directory, gitDir, IgnoreRules.load(gitDir), "");
   }
   
-  // Recursively write a tree object and return its hash
-  static String writeTree(File directory) throws IOException, NoSuchAlgorithmException {
+  static String writeTree(File directory, File gitDir, IgnoreRules rules, String path)
+      throws IOException, NoSuchAlgorithmException {
     List<TreeEntry> entries = new ArrayList<>();
     
     File[] files = directory.listFiles();
@@ -345,23 +822,39 @@ public class Main {
       throw new RuntimeException("Cannot read directory: " + directory);
     }
     
+    // The directory's own .gitignore applies to everything below it
+    for (File file : files) {
+      if (file.getName().equals(".gitignore") && file.isFile()) {
+        rules = rules.with(file, path);
+        break;
+      }
+    }
+    
     for (File file : files) {
       // Skip .git directory
-      if (file.getName().equals(".git")) {
+      String name = file.getName();
+      if (name.equals(".git")) {
+        continue;
+      }
+      
+      boolean isDirectory = file.isDirectory();
+      if (rules.isIgnored(path + name, name, isDirectory)) {
         continue;
       }
       
-      if (file.isFile()) {
-        String hash = createBlob(file);
+      if (isDirectory) {
+        String hash = writeTree(file, gitDir, rules, path + name + "/");
+        if (!hash.equals(EMPTY_TREE_ID)) {
+          entries.add(new TreeEntry("40000", name, hash));
+        }
+      } else if (file.isFile()) {
+        String hash = createBlob(file, gitDir);
         String mode = file.canExecute() ? "100755" : "100644";
-        entries.add(new TreeEntry(mode, file.getName(), hash));
-      } else if (file.isDirectory()) {
-        String hash = writeTree(file);
-        entries.add(new TreeEntry("40000", file.getName(), hash));
+        entries.add(new TreeEntry(mode, name, hash));
       }
     }
     
-    // Sort entries alphabetically
+    // Sort entries in git's tree order
     Collections.sort(entries);
     
     List<byte[]> contentParts = new ArrayList<>();
@@ -398,148 +891,637 @@ public class Main {
     MessageDigest digest = MessageDigest.getInstance("SHA-1");
     byte[] hashBytes = digest.digest(treeData);
     
-    StringBuilder hashHex = new StringBuilder();
-    for (byte b : hashBytes) {
-      hashHex.append(String.format("%02x", b));
-    }
-    String hash = hashHex.toString();
-    
-    String dirName = hash.substring(0, 2);
-    String fileName = hash.substring(2);
-    File objectDir = new File(".git/objects/" + dirName);
-    objectDir.mkdirs();
+    String hash = bytesToHex(hashBytes);
     
-    File objectFile = new File(objectDir, fileName);
-    try (FileOutputStream fos = new FileOutputStream(objectFile);
-         DeflaterOutputStream dos = new DeflaterOutputStream(fos)) {
-      dos.write(treeData);
-    }
+    writeLooseObject(gitDir, hash, treeData);
     
     return hash;
   }
   
-  // Clone repository from a remote URL
-  static void cloneRepository(String repoUrl, String targetDir) throws Exception {
-    // Create target directory
-    File dir = new File(targetDir);
-    if (!dir.mkdir()) {
-      throw new RuntimeException("Failed to create directory: " + targetDir);
+  // Ignore rules in force in one directory of a worktree walk: the patterns of its .gitignore
+  // over those of its parent, down to .git/info/exclude and the global excludes file. Each file
+  // is compiled once; the last matching pattern of the nearest level decides.
+  static class IgnoreRules {
+    final IgnoreRules parent;
+    final String base; // directory of the patterns, relative to the worktree, "" or ending in '/'
+    final List<IgnorePattern> patterns;
+    
+    IgnoreRules(IgnoreRules parent, String base, List<IgnorePattern> patterns) {
+      this.parent = parent;
+      this.base = base;
+      this.patterns = patterns;
     }
     
-    // Initialize git repository
-    File gitDir = new File(dir, ".git");
-    new File(gitDir, "objects").mkdirs();
-    new File(gitDir, "refs/heads").mkdirs();
-    
-    // Discover refs from remote
-    String discoverUrl = repoUrl + "/info/refs?service=git-upload-pack";
-    Map<String, String> refs = discoverRefs(discoverUrl);
-    
-    // Find the actual commit SHA to fetch
-    // Look for HEAD symref first, or fallback to main/master branch
-    String headRef = null;
-    String targetBranch = null;
-    
-    // Try to find a valid branch ref
-    if (refs.containsKey("refs/heads/main")) {
-      headRef = refs.get("refs/heads/main");
-      targetBranch = "refs/heads/main";
-    } else if (refs.containsKey("refs/heads/master")) {
-      headRef = refs.get("refs/heads/master");
-      targetBranch = "refs/heads/master";
-    } else {
-      // Find any head ref
-      for (String ref : refs.keySet()) {
-        if (ref.startsWith("refs/heads/")) {
-          headRef = refs.get(ref);
-          targetBranch = ref;
-          break;
-        }
+    // Rules at the top of the worktree, before its own .gitignore
+    static IgnoreRules load(File gitDir) throws IOException {
+      IgnoreRules rules = new IgnoreRules(null, "", List.of());
+      File global = globalExcludesFile(gitDir);
+      if (global.isFile()) {
+        rules = rules.with(global, "");
+      }
+      File exclude = new File(gitDir, "info/exclude");
+      if (exclude.isFile()) {
+        rules = rules.with(exclude, "");
       }
+      return rules;
     }
     
-    if (headRef == null) {
-      throw new RuntimeException("No branch refs found in repository");
+    // core.excludesFile from the repository or user config, else $XDG_CONFIG_HOME/git/ignore.
+    // Like git, home is $HOME, which the JVM's user.home does not follow.
+    static File globalExcludesFile(File gitDir) throws IOException {
+      String home = System.getenv("HOME");
+      if (home == null || home.isEmpty()) home = System.getProperty("user.home");
+      String path = readConfigValue(new File(gitDir, "config"), "core", "excludesfile");
+      if (path == null) path = readConfigValue(new File(home, ".gitconfig"), "core", "excludesfile");
+      if (path != null) {
+        return new File(path.startsWith("~/") ? home + path.substring(1) : path);
+      }
+      String xdg = System.getenv("XDG_CONFIG_HOME");
+      return new File(xdg != null && !xdg.isEmpty() ? xdg : home + "/.config", "git/ignore");
     }
     
-    String uploadPackUrl = repoUrl + "/git-upload-pack";
-    byte[] packfile = fetchPackfile(uploadPackUrl, headRef);
-    
-    unpackPackfile(packfile, gitDir);
-    
-    // Set HEAD
-    File headFile = new File(gitDir, "HEAD");
-    Files.write(headFile.toPath(), ("ref: " + targetBranch + "\n").getBytes());
-    
-    // Write refs
-    for (Map.Entry<String, String> entry : refs.entrySet()) {
-      String ref = entry.getKey();
-      String sha = entry.getValue();
-      
-      if (ref.startsWith("refs/heads/") || ref.startsWith("refs/tags/")) {
-        File refFile = new File(gitDir, ref);
-        refFile.getParentFile().mkdirs();
-        Files.write(refFile.toPath(), (sha + "\n").getBytes());
+    IgnoreRules with(File file, String base) throws IOException {
+      List<IgnorePattern> patterns = new ArrayList<>();
+      for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+        IgnorePattern pattern = IgnorePattern.parse(line);
+        if (pattern != null) patterns.add(pattern);
       }
+      return patterns.isEmpty() ? this : new IgnoreRules(this, base, patterns);
     }
     
-    // Checkout HEAD commit
-    checkoutCommit(dir, gitDir, headRef);
+    boolean isIgnored(String path, String name, boolean isDirectory) {
+      for (IgnoreRules level = this; level != null; level = level.parent) {
+        for (int i = level.patterns.size() - 1; i >= 0; i--) {
+          IgnorePattern pattern = level.patterns.get(i);
+          if (pattern.matches(path, level.base.length(), name, isDirectory)) {
+            return !pattern.negated;
+          }
+        }
+      }
+      return false;
+    }
   }
   
-  // Discover refs from remote repository
-  static Map<String, String> discoverRefs(String url) throws IOException {
-    Map<String, String> refs = new HashMap<>();
+  // One gitignore pattern. Names without wildcards and "*<suffix>" patterns, by far the common
+  // ones, are plain string comparisons; the rest are translated to a regex once.
+  static class IgnorePattern {
+    final boolean negated;
+    final boolean directoryOnly;
+    final boolean anchored; // contains a slash: matched against the path below the .gitignore
+    final String literal;
+    final String suffix;
+    final Pattern regex;
     
-    HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
-    conn.setRequestMethod("GET");
-    conn.setRequestProperty("User-Agent", "git/");
+    IgnorePattern(String glob, boolean negated, boolean directoryOnly, boolean anchored) {
+      this.negated = negated;
+      this.directoryOnly = directoryOnly;
+      this.anchored = anchored;
+      boolean wildcards = glob.chars().anyMatch(c -> c == '*' || c == '?' || c == '[' || c == '\\');
+      boolean suffixOnly = !anchored && glob.startsWith("*")
+        && glob.chars().skip(1).noneMatch(c -> c == '*' || c == '?' || c == '[' || c == '\\');
+      this.literal = wildcards ? null : glob;
+      this.suffix = suffixOnly ? glob.substring(1) : null;
+      this.regex = wildcards && !suffixOnly ? Pattern.compile(toRegex(glob)) : null;
+    }
     
-    try (InputStream in = conn.getInputStream()) {
-      byte[] data = in.readAllBytes();
-      String response = new String(data, StandardCharsets.UTF_8);
+    // null for blank lines and comments
+    static IgnorePattern parse(String line) {
+      int end = line.length();
+      while (end > 0 && line.charAt(end - 1) == ' ' && (end < 2 || line.charAt(end - 2) != '\\')) end--;
+      line = line.substring(0, end);
+      if (line.isEmpty() || line.startsWith("#")) return null;
       
-      // Parse pkt-line format
-      String[] lines = response.split("\n");
-      for (String line : lines) {
-        if (line.length() < 4) continue;
-        
-        // Skip the length prefix (4 hex digits)
-        String content = line.substring(4);
-        
-        // Skip service announcement
-        if (content.startsWith("# service=")) continue;
-        if (content.trim().isEmpty()) continue;
-        
-        // Parse ref line: <sha> <ref>\0<capabilities> or <sha> <ref>
-        String[] parts = content.split("\0")[0].trim().split("\\s+");
-        if (parts.length >= 2) {
-          String sha = parts[0];
-          String ref = parts[1];
-          refs.put(ref, sha);
-        }
+      boolean negated = line.startsWith("!");
+      if (negated || line.startsWith("\\!") || line.startsWith("\\#")) {
+        line = line.substring(1);
       }
+      boolean directoryOnly = line.endsWith("/");
+      line = line.replaceAll("/+$", "");
+      if (line.isEmpty()) return null;
+      
+      boolean anchored = line.indexOf('/') >= 0;
+      return new IgnorePattern(line.startsWith("/") ? line.substring(1) : line, negated, directoryOnly, anchored);
     }
     
-    return refs;
+    boolean matches(String path, int base, String name, boolean isDirectory) {
+      if (directoryOnly && !isDirectory) return false;
+      if (!anchored) {
+        if (literal != null) return name.equals(literal);
+        if (suffix != null) return name.endsWith(suffix);
+        return regex.matcher(name).matches();
+      }
+      if (literal != null) {
+        return path.length() - base == literal.length() && path.startsWith(literal, base);
+      }
+      return regex.matcher(path).region(base, path.length()).matches();
+    }
+    
+    // Wildcards stop at '/', except "**" as a whole component, which spans directories
+    static String toRegex(String glob) {
+      StringBuilder regex = new StringBuilder();
+      for (int i = 0; i < glob.length(); i++) {
+        char c = glob.charAt(i);
+        if (c == '*' && glob.startsWith("**", i) && (i == 0 || glob.charAt(i - 1) == '/')
+            && (i + 2 == glob.length() || glob.charAt(i + 2) == '/')) {
+          regex.append(i + 2 == glob.length() ? ".*" : "(?:.*/)?");
+          i += 2;
+        } else if (c == '*') {
+          regex.append("[^/]*");
+        } else if (c == '?') {
+          regex.append("[^/]");
+        } else if (c == '[' && glob.indexOf(']', i + 2) > 0) {
+          int close = glob.indexOf(']', i + 2);
+          String members = glob.substring(i + 1, close);
+          if (members.startsWith("!")) members = "^" + members.substring(1);
+          regex.append('[').append(members.replace("[", "\\[").replace("&&", "\\&\\&")).append(']');
+          i = close;
+        } else {
+          if (c == '\\' && i + 1 < glob.length()) c = glob.charAt(++i);
+          if (!Character.isLetterOrDigit(c)) regex.append('\\');
+          regex.append(c);
+        }
+      }
+      return regex.toString();
+    }
   }
   
-  // Fetch packfile from remote
-  static byte[] fetchPackfile(String url, String wantSha) throws IOException {
-    HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
-    conn.setRequestMethod("POST");
-    conn.setDoOutput(true);
+  // Value of a key in a git config file, or null; the last assignment wins, as in git
+  static String readConfigValue(File config, String section, String key) throws IOException {
+    if (!config.isFile()) return null;
+    String value = null;
+    String current = "";
+    for (String line : Files.readAllLines(config.toPath())) {
+      line = line.trim();
+      if (line.startsWith("[")) {
+        current = line.substring(1, Math.max(1, line.indexOf(']'))).trim().toLowerCase(Locale.ROOT);
+        continue;
+      }
+      int eq = line.indexOf('=');
+      if (eq > 0 && current.equals(section) && line.substring(0, eq).trim().equalsIgnoreCase(key)) {
+        value = line.substring(eq + 1).trim().replaceAll("^\"(.*)\"$", "$1");
+      }
+    }
+    return value;
+  }
+  
+  // Set a key in a git config file: its last assignment in the section is replaced, otherwise it
+  // is added at the end of the section, which is itself appended when missing
+  static void writeConfigValue(File config, String section, String key, String value) throws IOException {
+    List<String> lines = config.isFile() ? new ArrayList<>(Files.readAllLines(config.toPath())) : new ArrayList<>();
+    String entry = "\t" + key + " = " + value;
+    String current = "";
+    int assignment = -1;
+    int sectionEnd = -1;
+    for (int i = 0; i < lines.size(); i++) {
+      String line = lines.get(i).trim();
+      if (line.startsWith("[")) {
+        current = line.substring(1, Math.max(1, line.indexOf(']'))).trim().toLowerCase(Locale.ROOT);
+        if (current.equals(section)) sectionEnd = i + 1;
+        continue;
+      }
+      if (!current.equals(section)) continue;
+      if (!line.isEmpty()) sectionEnd = i + 1;
+      int eq = line.indexOf('=');
+      if (eq > 0 && line.substring(0, eq).trim().equalsIgnoreCase(key)) {
+        assignment = i;
+      }
+    }
+    
+    if (assignment >= 0) {
+      lines.set(assignment, entry);
+    } else if (sectionEnd >= 0) {
+      lines.add(sectionEnd, entry);
+    } else {
+      lines.add("[" + section + "]");
+      lines.add(entry);
+    }
+    Files.write(config.toPath(), (String.join("\n", lines) + "\n").getBytes(StandardCharsets.UTF_8));
+  }
+  
+  // Clone repository from a remote URL or a local path. A sparse clone checks out only the
+  // top-level files until sparse-checkout adds directories. With a reference repository, objects
+  // it has are read from it through alternates instead of being fetched or linked.
+  static void cloneRepository(String repoUrl, String targetDir, boolean sparse, String reference) throws Exception {
+    File referenceGitDir = null;
+    if (reference != null) {
+      referenceGitDir = localRepository(reference);
+      if (referenceGitDir == null) {
+        throw new RuntimeException("Reference repository not found: " + reference);
+      }
+    }
+    if (!repoUrl.contains("://") || repoUrl.startsWith("file://")) {
+      File sourceGitDir = localRepository(repoUrl);
+      if (sourceGitDir == null) {
+        throw new RuntimeException("Repository not found: " + repoUrl);
+      }
+      cloneLocal(sourceGitDir, targetDir, sparse, referenceGitDir);
+      return;
+    }
+    
+    File dir = new File(targetDir);
+    File gitDir = new File(dir, ".git");
+    File checkpointFile = new File(gitDir, "clone-checkpoint");
+    boolean resuming = checkpointFile.isFile();
+    boolean createdDir = !dir.exists();
+    
+    // Create target directory, or reuse an empty one / an interrupted clone
+    if (!resuming) {
+      String[] existing = dir.list();
+      if (existing != null && existing.length > 0) {
+        throw new RuntimeException("Destination path already exists and is not an empty directory: " + targetDir);
+      }
+      if (createdDir && !dir.mkdirs()) {
+        throw new RuntimeException("Failed to create directory: " + targetDir);
+      }
+    }
+    
+    try {
+      // Initialize git repository
+      new File(gitDir, "objects/pack").mkdirs();
+      new File(gitDir, "refs/heads").mkdirs();
+      if (sparse && !resuming) {
+        new SparseCheckout(List.of()).save(gitDir);
+      }
+      
+      // The server leaves out history the reference repository already has
+      Set<String> haves = new LinkedHashSet<>();
+      if (referenceGitDir != null) {
+        addAlternate(gitDir, referenceGitDir);
+        haves.addAll(readRefs(referenceGitDir).values());
+      }
+      
+      // Discover refs from remote
+      String discoverUrl = repoUrl + "/info/refs?service=git-upload-pack";
+      Map<String, String> refs;
+      try (Stats.Phase phase = Stats.begin("discover-refs")) {
+        refs = discoverRefs(discoverUrl);
+      }
+      
+      // Find the actual commit SHA to fetch
+      // Look for HEAD symref first, or fallback to main/master branch
+      String headRef = null;
+      String targetBranch = null;
+      
+      // Try to find a valid branch ref
+      if (refs.containsKey("refs/heads/main")) {
+        headRef = refs.get("refs/heads/main");
+        targetBranch = "refs/heads/main";
+      } else if (refs.containsKey("refs/heads/master")) {
+        headRef = refs.get("refs/heads/master");
+        targetBranch = "refs/heads/master";
+      } else {
+        // Find any head ref
+        for (String ref : refs.keySet()) {
+          if (ref.startsWith("refs/heads/")) {
+            headRef = refs.get(ref);
+            targetBranch = ref;
+            break;
+          }
+        }
+      }
+      
+      if (headRef == null) {
+        throw new RuntimeException("No branch refs found in repository");
+      }
+      
+      // A checkpoint for a different tip is useless: start the pack over
+      File spoolFile = new File(gitDir, "objects/pack/incoming.pack");
+      File entriesFile = new File(gitDir, "objects/pack/incoming.entries");
+      CloneCheckpoint checkpoint = resuming ? CloneCheckpoint.load(checkpointFile) : new CloneCheckpoint(checkpointFile);
+      if (!headRef.equals(checkpoint.want)) {
+        Files.deleteIfExists(spoolFile.toPath());
+        Files.deleteIfExists(entriesFile.toPath());
+        checkpoint.reset(headRef);
+      }
+      checkpoint.save();
+      
+      // Download, index and check out, unless only the checkout was interrupted
+      boolean needPipeline = !checkpoint.isComplete();
+      if (needPipeline) {
+        String uploadPackUrl = repoUrl + "/git-upload-pack";
+        clonePipeline(uploadPackUrl, headRef, haves, spoolFile, entriesFile, dir, gitDir, checkpoint);
+      }
+      
+      // Keep the verified pack, indexed, under its checksum name; it is the only copy of the objects
+      try (Stats.Phase phase = Stats.begin("write-pack-index")) {
+        finishPack(spoolFile, entriesFile, gitDir);
+      }
+      if (!needPipeline) {
+        try (Stats.Phase phase = Stats.begin("checkout")) {
+          checkoutCommit(dir, gitDir, headRef);
+        }
+      }
+      
+      writeCloneRefs(gitDir, targetBranch, refs);
+      
+      // Clone finished, drop the resume state
+      Files.deleteIfExists(entriesFile.toPath());
+      Files.deleteIfExists(checkpointFile.toPath());
+    } catch (IOException e) {
+      // Dropped connections and short packs keep the spool and checkpoint for the next run
+      System.err.println("Clone interrupted, rerun the same command to resume: " + e.getMessage());
+      throw e;
+    } catch (Exception e) {
+      // Anything else means the pack or refs are unusable: roll back
+      if (createdDir) {
+        deleteRecursively(dir);
+      } else {
+        File[] children = dir.listFiles();
+        if (children != null) {
+          for (File child : children) {
+            deleteRecursively(child);
+          }
+        }
+      }
+      throw e;
+    }
+  }
+  
+  // Set HEAD to the checked out branch and copy the branch and tag refs of the source
+  static void writeCloneRefs(File gitDir, String targetBranch, Map<String, String> refs) throws IOException {
+    File headFile = new File(gitDir, "HEAD");
+    Files.write(headFile.toPath(), ("ref: " + targetBranch + "\n").getBytes());
+    
+    for (Map.Entry<String, String> entry : refs.entrySet()) {
+      String ref = entry.getKey();
+      String sha = entry.getValue();
+      
+      // Peeled tags ("^{}") are advertised for reference only
+      if ((ref.startsWith("refs/heads/") || ref.startsWith("refs/tags/")) && !ref.endsWith("^{}")) {
+        File refFile = new File(gitDir, ref);
+        refFile.getParentFile().mkdirs();
+        Files.write(refFile.toPath(), (sha + "\n").getBytes());
+      }
+    }
+  }
+  
+  // Clone a repository on this machine. Object files are immutable and only ever replaced by
+  // rename, so they are hard-linked rather than copied (copied only across filesystems) and the
+  // clone costs directory entries instead of object bytes. Packs and loose objects a reference
+  // repository already has are not linked at all: they are read through the alternates.
+  static void cloneLocal(File sourceGitDir, String targetDir, boolean sparse, File referenceGitDir) throws Exception {
+    File dir = new File(targetDir);
+    File gitDir = new File(dir, ".git");
+    boolean createdDir = !dir.exists();
+    String[] existing = dir.list();
+    if (existing != null && existing.length > 0) {
+      throw new RuntimeException("Destination path already exists and is not an empty directory: " + targetDir);
+    }
+    
+    try {
+      new File(gitDir, "objects/pack").mkdirs();
+      new File(gitDir, "refs/heads").mkdirs();
+      if (sparse) {
+        new SparseCheckout(List.of()).save(gitDir);
+      }
+      
+      // Whatever the source borrows from its own alternates stays borrowed
+      List<File> sourceStores = objectStores(sourceGitDir);
+      for (File store : sourceStores.subList(1, sourceStores.size())) {
+        addAlternate(gitDir, store);
+      }
+      if (referenceGitDir != null) {
+        addAlternate(gitDir, referenceGitDir);
+      }
+      List<File> borrowed = objectStores(gitDir).subList(1, objectStores(gitDir).size());
+      
+      try (Stats.Phase phase = Stats.begin("link-objects")) {
+        File sourceObjects = new File(sourceGitDir, "objects");
+        File targetObjects = new File(gitDir, "objects");
+        File[] children = sourceObjects.listFiles();
+        for (File child : children == null ? new File[0] : children) {
+          String name = child.getName();
+          if (name.length() != 2 || !child.isDirectory()) continue;
+          File[] objects = child.listFiles();
+          for (File object : objects == null ? new File[0] : objects) {
+            String relative = name + "/" + object.getName();
+            if (object.getName().startsWith("tmp_") || isBorrowed(borrowed, relative)) continue;
+            new File(targetObjects, name).mkdirs();
+            linkOrCopy(object, new File(targetObjects, relative));
+          }
+        }
+        
+        // A pack becomes visible with its index, so every .idx goes in after the rest
+        File[] packFiles = new File(sourceObjects, "pack").listFiles(f -> f.getName().startsWith("pack-"));
+        List<File> packs = new ArrayList<>(Arrays.asList(packFiles == null ? new File[0] : packFiles));
+        packs.sort(Comparator.comparing((File f) -> f.getName().endsWith(".idx")).thenComparing(File::getName));
+        for (File pack : packs) {
+          String base = pack.getName().replaceAll("\\.[a-z]+$", "");
+          if (isBorrowed(borrowed, "pack/" + base + ".idx")) continue;
+          linkOrCopy(pack, new File(targetObjects, "pack/" + pack.getName()));
+        }
+        
+        File commitGraph = new File(sourceObjects, "info/commit-graph");
+        if (commitGraph.isFile()) {
+          new File(targetObjects, "info").mkdirs();
+          linkOrCopy(commitGraph, new File(targetObjects, "info/commit-graph"));
+        }
+      }
+      
+      // Check out the branch the source's HEAD names, else main, master or any branch
+      Map<String, String> refs = readRefs(sourceGitDir);
+      String head = Files.readString(new File(sourceGitDir, "HEAD").toPath()).trim();
+      String targetBranch = head.startsWith("ref: ") && refs.containsKey(head.substring(5)) ? head.substring(5) : null;
+      for (String candidate : List.of("refs/heads/main", "refs/heads/master")) {
+        if (targetBranch == null && refs.containsKey(candidate)) targetBranch = candidate;
+      }
+      for (String ref : refs.keySet()) {
+        if (targetBranch == null && ref.startsWith("refs/heads/")) targetBranch = ref;
+      }
+      if (targetBranch == null) {
+        throw new RuntimeException("No branch refs found in repository");
+      }
+      
+      writeCloneRefs(gitDir, targetBranch, refs);
+      try (Stats.Phase phase = Stats.begin("checkout")) {
+        checkoutCommit(dir, gitDir, refs.get(targetBranch));
+      }
+    } catch (Exception e) {
+      if (createdDir) {
+        deleteRecursively(dir);
+      } else {
+        File[] children = dir.listFiles();
+        for (File child : children == null ? new File[0] : children) {
+          deleteRecursively(child);
+        }
+      }
+      throw e;
+    }
+  }
+  
+  static boolean isBorrowed(List<File> stores, String relative) {
+    for (File store : stores) {
+      if (new File(store, "objects/" + relative).exists()) return true;
+    }
+    return false;
+  }
+  
+  static void linkOrCopy(File source, File target) throws IOException {
+    try {
+      Files.createLink(target.toPath(), source.toPath());
+    } catch (UnsupportedOperationException | FileSystemException e) {
+      // Another filesystem, or one without hard links
+      Files.copy(source.toPath(), target.toPath(), StandardCopyOption.COPY_ATTRIBUTES);
+    }
+  }
+  
+  // The git directory of a local repository (a worktree or a bare repository, by path or
+  // file:// URL), or null when there is none
+  static File localRepository(String location) {
+    File dir = new File(location.startsWith("file://") ? location.substring(7) : location);
+    File dotGit = new File(dir, ".git");
+    if (new File(dotGit, "objects").isDirectory()) return dotGit;
+    if (new File(dir, "objects").isDirectory() && new File(dir, "HEAD").isFile()) return dir;
+    return null;
+  }
+  
+  // Run receive, parse, resolve and checkout as concurrent stages joined by bounded queues.
+  // The spool file is the buffer between the network and the parser, which tails it.
+  static void clonePipeline(String uploadPackUrl, String wantSha, Collection<String> haves, File spoolFile,
+                            File entriesFile, File workDir, File gitDir, CloneCheckpoint checkpoint) throws Exception {
+    BlockingQueue<PackObject> parsed = new ArrayBlockingQueue<>(PIPELINE_QUEUE_SIZE);
+    BlockingQueue<PackObject> stored = new ArrayBlockingQueue<>(PIPELINE_QUEUE_SIZE);
+    ExecutorService stages = Executors.newFixedThreadPool(4, r -> {
+      // Daemon threads so a network read stuck after a failure cannot keep the JVM alive
+      Thread thread = new Thread(r, "clone-stage");
+      thread.setDaemon(true);
+      return thread;
+    });
+    
+    try (PackSpool spool = new PackSpool(spoolFile, checkpoint)) {
+      CompletionService<Void> completion = new ExecutorCompletionService<>(stages);
+      completion.submit(() -> {
+        try (Stats.Phase phase = Stats.begin("fetch-pack")) {
+          fetchPackfile(uploadPackUrl, List.of(wantSha), haves, spool);
+          spool.finish(null);
+        } catch (Throwable e) {
+          spool.finish(e);
+          throw e;
+        }
+        return null;
+      });
+      completion.submit(() -> {
+        try (Stats.Phase phase = Stats.begin("parse-pack")) {
+          parsePack(spool, checkpoint, parsed::put);
+        }
+        return null;
+      });
+      completion.submit(() -> {
+        try (Stats.Phase phase = Stats.begin("resolve-deltas")) {
+          storeObjects(parsed, stored, spoolFile, entriesFile, gitDir, checkpoint);
+        }
+        return null;
+      });
+      completion.submit(() -> {
+        try (Stats.Phase phase = Stats.begin("checkout");
+             PipelinedCheckout checkout = new PipelinedCheckout(workDir, gitDir, spoolFile, entriesFile, checkpoint.objects)) {
+          checkout.run(wantSha, stored);
+        }
+        return null;
+      });
+      
+      // The first stage to fail cancels the rest
+      for (int i = 0; i < 4; i++) {
+        try {
+          completion.take().get();
+        } catch (ExecutionException e) {
+          spool.finish(e.getCause());
+          stages.shutdownNow();
+          if (e.getCause() instanceof Exception cause) {
+            throw cause;
+          }
+          throw e;
+        }
+      }
+    } finally {
+      stages.shutdownNow();
+    }
+  }
+  
+  // Recursively delete a file or directory
+  static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+  
+  // Discover refs from remote repository
+  static Map<String, String> discoverRefs(String url) throws IOException {
+    return discoverRefs(url, new HashSet<>());
+  }
+  
+  // Same, also collecting the capabilities advertised after the first ref
+  static Map<String, String> discoverRefs(String url, Set<String> capabilities) throws IOException {
+    Map<String, String> refs = new HashMap<>();
+    
+    HttpURLConnection conn = (HttpURLConnection) URI.create(url).toURL().openConnection();
+    conn.setRequestMethod("GET");
+    conn.setRequestProperty("User-Agent", "git/");
+    
+    try (InputStream in = new BufferedInputStream(conn.getInputStream())) {
+      // Parse pkt-line format; the flush after the service announcement runs straight into
+      // the first ref line, so frame by length rather than by newline
+      byte[] lengthBytes;
+      while ((lengthBytes = in.readNBytes(4)).length == 4) {
+        int length = Integer.parseInt(new String(lengthBytes, StandardCharsets.US_ASCII), 16);
+        if (length == 0) continue; // flush-pkt
+        String content = new String(in.readNBytes(length - 4), StandardCharsets.UTF_8);
+        
+        // Skip service announcement
+        if (content.startsWith("# service=")) continue;
+        if (content.trim().isEmpty()) continue;
+        
+        // Parse ref line: <sha> <ref>\0<capabilities> or <sha> <ref>
+        String[] fields = content.split("\0");
+        if (fields.length > 1) {
+          capabilities.addAll(Arrays.asList(fields[1].trim().split(" ")));
+        }
+        String[] parts = fields[0].trim().split("\\s+");
+        // An empty repository advertises "capabilities^{}" in place of a ref
+        if (parts.length >= 2 && !parts[1].equals("capabilities^{}")) {
+          String sha = parts[0];
+          String ref = parts[1];
+          refs.put(ref, sha);
+        }
+      }
+    }
+    
+    return refs;
+  }
+  
+  // Fetch packfile from remote and stream it into the given sink
+  static void fetchPackfile(String url, String wantSha, OutputStream sink) throws IOException {
+    fetchPackfile(url, List.of(wantSha), List.of(), sink);
+  }
+  
+  // Same for several tips, telling the server which objects we already have so it can leave
+  // their history out of the pack
+  static void fetchPackfile(String url, Collection<String> wants, Collection<String> haves,
+                            OutputStream sink) throws IOException {
+    HttpURLConnection conn = (HttpURLConnection) URI.create(url).toURL().openConnection();
+    conn.setRequestMethod("POST");
+    conn.setDoOutput(true);
     conn.setRequestProperty("Content-Type", "application/x-git-upload-pack-request");
     conn.setRequestProperty("User-Agent", "git/");
     
     // Build request
     ByteArrayOutputStream requestBody = new ByteArrayOutputStream();
     
-    // Want line - use simpler capabilities
-    String wantLine = "want " + wantSha + "\n";
-    writePktLine(requestBody, wantLine);
+    // Want lines - offset deltas are resolved through the object table
+    boolean first = true;
+    for (String want : wants) {
+      writePktLine(requestBody, "want " + want + (first ? " ofs-delta\n" : "\n"));
+      first = false;
+    }
     writePktLine(requestBody, null); // flush-pkt
     
+    for (String have : haves) {
+      writePktLine(requestBody, "have " + have + "\n");
+    }
     writePktLine(requestBody, "done\n");
     
     try (OutputStream out = conn.getOutputStream()) {
@@ -561,17 +1543,8 @@ public class Main {
       if (responseStream == null) throw e;
     }
     
-    try (InputStream in = responseStream) {
-      ByteArrayOutputStream packData = new ByteArrayOutputStream();
-      byte[] buffer = new byte[8192];
-      int read;
-      
-      while ((read = in.read(buffer)) != -1) {
-        packData.write(buffer, 0, read);
-      }
-      
-      byte[] data = packData.toByteArray();
-      return parseSideBandData(data);
+    try (InputStream in = new BufferedInputStream(responseStream, 65536)) {
+      receivePackStream(in, sink);
     }
   }
   
@@ -581,160 +1554,253 @@ public class Main {
       // flush-pkt
       out.write("0000".getBytes(StandardCharsets.UTF_8));
     } else {
-      int length = line.length() + 4;
-      String lengthHex = String.format("%04x", length);
+      byte[] content = line.getBytes(StandardCharsets.UTF_8);
+      String lengthHex = String.format("%04x", content.length + 4);
       out.write(lengthHex.getBytes(StandardCharsets.UTF_8));
-      out.write(line.getBytes(StandardCharsets.UTF_8));
+      out.write(content);
     }
   }
   
-  // Parse side-band data
-  static byte[] parseSideBandData(byte[] data) throws IOException {
-    // First, try to find PACK signature directly in the data
-    for (int i = 0; i < data.length - 3; i++) {
-      if (data[i] == 'P' && data[i+1] == 'A' && 
-          data[i+2] == 'C' && data[i+3] == 'K') {
-        // Found PACK signature, return from here to end
-        return Arrays.copyOfRange(data, i, data.length);
-      }
-    }
-    
-    // If no PACK signature found, try parsing pkt-line format
-    ByteArrayOutputStream packfile = new ByteArrayOutputStream();
-    int pos = 0;
+  // Copy the packfile out of an upload-pack response, demultiplexing side-band if present
+  static void receivePackStream(InputStream in, OutputStream pack) throws IOException {
+    byte[] lengthBytes = new byte[4];
+    byte[] content = new byte[65520];
+    long packBytes = 0;
     
-    while (pos < data.length) {
-      if (pos + 4 > data.length) break;
-      
-      // Read pkt-line length
-      String lengthHex = new String(data, pos, 4, StandardCharsets.UTF_8);
+    while (true) {
+      int headerRead = in.readNBytes(lengthBytes, 0, 4);
+      if (headerRead == 0) break;
+      if (headerRead < 4) {
+        throw new EOFException("Unexpected end of response inside pkt-line header");
+      }
       
-      // Check for flush-pkt
-      if (lengthHex.equals("0000")) {
-        pos += 4;
-        continue;
+      // Without side-band the raw pack follows the NAK directly
+      if (lengthBytes[0] == 'P' && lengthBytes[1] == 'A' &&
+          lengthBytes[2] == 'C' && lengthBytes[3] == 'K') {
+        pack.write(lengthBytes);
+        packBytes += 4 + in.transferTo(pack);
+        break;
       }
       
-      // Parse length
+      // Parse pkt-line length
+      String lengthHex = new String(lengthBytes, StandardCharsets.US_ASCII);
       int length;
       try {
         length = Integer.parseInt(lengthHex, 16);
       } catch (NumberFormatException e) {
-        pos++;
-        continue;
+        throw new IOException("Invalid pkt-line length: " + lengthHex.replaceAll("[^\\x20-\\x7E]", "."));
       }
       
-      // Validate length - must be at least 5 (4 for length + 1 for content)
-      if (length < 5) {
-        pos += 4;
-        continue;
-      }
+      // flush-pkt and other empty packets carry no content
+      if (length <= 4) continue;
       
-      // Check if we have enough data
-      if (pos + length > data.length) {
-        break;
+      // Read the content after length prefix (length includes the 4-byte prefix itself)
+      int contentLength = length - 4;
+      if (in.readNBytes(content, 0, contentLength) != contentLength) {
+        throw new EOFException("Unexpected end of response inside pkt-line");
       }
       
-      // Read the content after length prefix (length includes the 4-byte prefix itself)
-      byte[] content = Arrays.copyOfRange(data, pos + 4, pos + length);
+      // Check if first byte is a band indicator (1, 2, or 3)
+      int firstByte = content[0] & 0xFF;
       
-      if (content.length > 0) {
-        // Check if first byte is a band indicator (1, 2, or 3)
-        int firstByte = content[0] & 0xFF;
-        
-        if (firstByte == 1) {
-          // Band 1: packfile data
-          if (content.length > 1) {
-            packfile.write(content, 1, content.length - 1);
-          }
-        } else if (firstByte == 2 || firstByte == 3) {
-          // Band 2 (progress) and 3 (errors) - log to stderr
-          String msg = new String(content, 1, content.length - 1, StandardCharsets.UTF_8);
-          System.err.println("Server: " + msg);
-        } else {
-          // Not a side-band packet, might be NAK or other protocol message
-          String msg = new String(content, StandardCharsets.UTF_8).trim();
-          if (!msg.equals("NAK") && !msg.startsWith("acknowledgments")) {
-            System.err.println("Protocol message: " + msg);
-          }
+      if (firstByte == 1) {
+        // Band 1: packfile data
+        pack.write(content, 1, contentLength - 1);
+        packBytes += contentLength - 1;
+      } else if (firstByte == 2 || firstByte == 3) {
+        // Band 2 (progress) and 3 (errors) - log to stderr
+        String msg = new String(content, 1, contentLength - 1, StandardCharsets.UTF_8);
+        System.err.println("Server: " + msg);
+      } else {
+        // Not a side-band packet, might be NAK or other protocol message
+        String msg = new String(content, 0, contentLength, StandardCharsets.UTF_8).trim();
+        if (!msg.equals("NAK") && !msg.startsWith("ACK ") && !msg.startsWith("acknowledgments")) {
+          System.err.println("Protocol message: " + msg);
         }
       }
-      
-      pos += length;
     }
     
-    byte[] result = packfile.toByteArray();
-    
-    // If we got packfile data, return it
-    if (result.length > 0) {
-      return result;
+    if (packBytes == 0) {
+      throw new IOException("No packfile data found in response");
     }
-    
-    // No packfile found - provide detailed error
-    String preview = new String(data, 0, Math.min(data.length, 100), StandardCharsets.UTF_8);
-    throw new IOException("No packfile data found in response (" + data.length + 
-      " bytes). Preview: " + preview.replaceAll("[^\\x20-\\x7E]", "."));
   }
   
-  // Unpack packfile and store objects
-  static void unpackPackfile(byte[] packfile, File gitDir) throws Exception {
-    if (packfile == null || packfile.length < 12) {
-      throw new RuntimeException("Invalid packfile: too short (" + 
-        (packfile == null ? "null" : packfile.length) + " bytes)");
+  // Parse stage: read objects from the spool as it grows and hand them to the store stage.
+  // The pack checksum and per-object CRC32s are computed on the same pass.
+  static void parsePack(PackSpool spool, CloneCheckpoint checkpoint, PackObjectSink parsed) throws Exception {
+    try (PackScanner in = new PackScanner(spool)) {
+      byte[] header = in.readBytes(12);
+      
+      if (header[0] != 'P' || header[1] != 'A' || header[2] != 'C' || header[3] != 'K') {
+        throw new RuntimeException("Invalid packfile signature (expected PACK, got: " + 
+          new String(header, 0, 4) + ")");
+      }
+      
+      // Read version
+      int version = ((header[4] & 0xFF) << 24) | ((header[5] & 0xFF) << 16) | 
+                    ((header[6] & 0xFF) << 8) | (header[7] & 0xFF);
+      if (version != 2 && version != 3) {
+        throw new RuntimeException("Unsupported packfile version: " + version);
+      }
+      
+      // Read object count
+      int objectCount = ((header[8] & 0xFF) << 24) | ((header[9] & 0xFF) << 16) | 
+                        ((header[10] & 0xFF) << 8) | (header[11] & 0xFF);
+      checkpoint.total = objectCount;
+      
+      // Objects before the checkpoint are already stored; their bytes still go into the pack checksum
+      if (checkpoint.objects > 0) {
+        in.skipHashed(checkpoint.offset - 12);
+      }
+      
+      for (int i = checkpoint.objects; i < objectCount; i++) {
+        in.beginObject();
+        long offset = in.position();
+        PackObject obj = readPackObject(in);
+        obj.offset = offset;
+        obj.end = in.position();
+        obj.crc = in.objectCrc();
+        parsed.put(obj);
+      }
+      
+      // Trailer: SHA-1 of everything before it
+      byte[] expected = in.packDigest();
+      byte[] trailer = in.readBytes(20);
+      if (!Arrays.equals(expected, trailer)) {
+        throw new RuntimeException("Corrupt packfile: checksum mismatch (expected " + 
+          bytesToHex(expected) + ", got " + bytesToHex(trailer) + ")");
+      }
+      parsed.put(END_OF_PACK);
+    }
+  }
+  
+  // Receives pack objects in pack order
+  interface PackObjectSink {
+    void put(PackObject obj) throws Exception;
+  }
+  
+  // Store stage: pass every parsed object through an ObjectStore, handing resolved ones on
+  static void storeObjects(BlockingQueue<PackObject> parsed, BlockingQueue<PackObject> stored, File spoolFile,
+                           File entriesFile, File gitDir, CloneCheckpoint checkpoint) throws Exception {
+    try (ObjectStore store = new ObjectStore(entriesFile, gitDir, checkpoint, DELTA_BASE_CACHE_LIMIT, spoolFile,
+                                             stored::put)) {
+      PackObject obj;
+      while ((obj = parsed.take()) != END_OF_PACK) {
+        store.put(obj);
+      }
+      store.finish();
     }
-    
-    // Wrap in PushbackInputStream to allow pushing back unused bytes after inflation
-    PushbackInputStream in = new PushbackInputStream(new ByteArrayInputStream(packfile), 8192);
-    
-    byte[] header = new byte[12];
-    if (in.read(header) != 12) {
-      throw new RuntimeException("Invalid packfile: header too short (got " + packfile.length + " bytes)");
+    stored.put(END_OF_PACK);
+  }
+  
+  // Append a (sha, crc32, offset) record for the pack index
+  static void writePackEntry(DataOutputStream entries, PackObject obj) throws IOException {
+    entries.write(obj.sha);
+    entries.writeInt((int) obj.crc);
+    entries.writeLong(obj.offset);
+  }
+  
+  // Load (sha, crc32, offset) records into the object table; types are left unknown
+  static void readPackEntries(File entriesFile, ObjectTable table) throws IOException {
+    readPackEntries(entriesFile, table, (int) (entriesFile.length() / PACK_ENTRY_SIZE));
+  }
+  
+  // The same for the first count records only, which another thread may be appending to
+  static void readPackEntries(File entriesFile, ObjectTable table, int count) throws IOException {
+    if (count == 0) return;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(entriesFile)))) {
+      byte[] sha = new byte[20];
+      for (int i = 0; i < count; i++) {
+        in.readFully(sha);
+        int crc = in.readInt();
+        long offset = in.readLong();
+        table.insert(sha, offset, crc, 0);
+      }
     }
+  }
+  
+  // Turn the verified spool into objects/pack/pack-<checksum>.pack with a matching .idx
+  static void finishPack(File spoolFile, File entriesFile, File gitDir) throws IOException {
+    if (!spoolFile.exists()) return;
     
-    if (header[0] != 'P' || header[1] != 'A' || header[2] != 'C' || header[3] != 'K') {
-      throw new RuntimeException("Invalid packfile signature (expected PACK, got: " + 
-        new String(header, 0, 4) + ")");
+    // Trailer was verified by the parse stage
+    byte[] packChecksum = new byte[20];
+    try (RandomAccessFile raf = new RandomAccessFile(spoolFile, "r")) {
+      raf.seek(raf.length() - 20);
+      raf.readFully(packChecksum);
     }
     
-    // Read version
-    int version = ((header[4] & 0xFF) << 24) | ((header[5] & 0xFF) << 16) | 
-                  ((header[6] & 0xFF) << 8) | (header[7] & 0xFF);
+    ObjectTable table = new ObjectTable((int) (entriesFile.length() / PACK_ENTRY_SIZE));
+    readPackEntries(entriesFile, table);
     
-    // Read object count
-    int objectCount = ((header[8] & 0xFF) << 24) | ((header[9] & 0xFF) << 16) | 
-                      ((header[10] & 0xFF) << 8) | (header[11] & 0xFF);
+    String name = "pack-" + bytesToHex(packChecksum);
+    File packDir = new File(gitDir, "objects/pack");
+    writePackIndex(new File(packDir, name + ".idx"), table, packChecksum);
+    Files.move(spoolFile.toPath(), new File(packDir, name + ".pack").toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+  
+  // Write a version 2 pack index for the objects in the table
+  static void writePackIndex(File idxFile, ObjectTable table, byte[] packChecksum) throws IOException {
+    int[] order = table.sortedSlots();
     
-    // Parse objects
-    List<PackObject> objects = new ArrayList<>();
-    for (int i = 0; i < objectCount; i++) {
-      PackObject obj = readPackObject(in);
-      objects.add(obj);
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
     }
     
-    // Resolve deltified objects
-    Map<String, byte[]> objectData = new HashMap<>();
-    for (PackObject obj : objects) {
-      resolveObject(obj, objects, objectData, gitDir);
+    File tmp = new File(idxFile.getPath() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+           new DigestOutputStream(new FileOutputStream(tmp), digest)))) {
+      // Header: magic and version
+      out.writeInt(0xff744f63);
+      out.writeInt(2);
+      
+      // Fan-out table: number of objects whose first byte is <= i
+      int[] fanout = new int[256];
+      for (int slot : order) fanout[table.firstByte(slot)]++;
+      int total = 0;
+      for (int i = 0; i < 256; i++) {
+        total += fanout[i];
+        out.writeInt(total);
+      }
+      
+      for (int slot : order) table.writeSha(out, slot);
+      for (int slot : order) out.writeInt(table.crcs[slot]);
+      
+      // Offsets past 2^31 go to the 64-bit table
+      int largeCount = 0;
+      for (int slot : order) {
+        long offset = table.offsets[slot];
+        if (offset < 0x80000000L) {
+          out.writeInt((int) offset);
+        } else {
+          out.writeInt(0x80000000 | largeCount++);
+        }
+      }
+      for (int slot : order) {
+        if (table.offsets[slot] >= 0x80000000L) out.writeLong(table.offsets[slot]);
+      }
+      
+      out.write(packChecksum);
+      out.flush();
+      out.write(digest.digest());
     }
+    Files.move(tmp.toPath(), idxFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
   }
   
   // Read a pack object
-  static PackObject readPackObject(InputStream in) throws IOException {
+  static PackObject readPackObject(PackScanner in) throws IOException {
     // Read type and size
-    int b = in.read();
-    if (b == -1) {
-      throw new IOException("Unexpected end of packfile");
-    }
+    int b = in.readByte();
     
     int type = (b >> 4) & 0x07;
     long size = b & 0x0F;
     int shift = 4;
     
     while ((b & 0x80) != 0) {
-      b = in.read();
-      if (b == -1) {
-        throw new IOException("Unexpected end of packfile while reading object size");
-      }
+      b = in.readByte();
       size |= ((long)(b & 0x7F)) << shift;
       shift += 7;
     }
@@ -747,117 +1813,129 @@ public class Main {
     switch (type) {
       case 6 -> { // OFS_DELTA
         // Read negative offset
-        long offset = in.read() & 0x7F;
+        b = in.readByte();
+        long offset = b & 0x7F;
         while ((b & 0x80) != 0) {
-          b = in.read();
+          b = in.readByte();
           offset = ((offset + 1) << 7) | (b & 0x7F);
         }
         obj.deltaOffset = offset;
-        obj.data = readCompressedData(in);
+        obj.data = readCompressedData(in, size);
       }
       case 7 -> { // REF_DELTA
         // Read base object SHA
-        byte[] baseHash = new byte[20];
-        in.read(baseHash);
-        obj.baseHash = bytesToHex(baseHash);
-        obj.data = readCompressedData(in);
+        obj.baseSha = in.readBytes(20);
+        obj.data = readCompressedData(in, size);
       }
       default -> {
         // Regular object
-        obj.data = readCompressedData(in);
+        obj.data = readCompressedData(in, size);
       }
     }
     
     return obj;
   }
   
-  // Read compressed data
-  static byte[] readCompressedData(InputStream in) throws IOException {
-    // We need to manually handle inflation to avoid consuming extra bytes from the stream
-    java.util.zip.Inflater inflater = new java.util.zip.Inflater();
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-    byte[] inputBuffer = new byte[1024];
-    byte[] outputBuffer = new byte[8192];
-    int lastInputSize = 0;
+  // Read compressed data; the inflater consumes the scanner's window in place and stops at the
+  // exact end of the zlib stream, so the next object starts where the cursor is left
+  static byte[] readCompressedData(PackScanner in, long size) throws IOException {
+    if (size > Integer.MAX_VALUE - 8) {
+      throw new RuntimeException("Pack object too large: " + size + " bytes");
+    }
+    
+    Inflater inflater = in.inflater;
+    inflater.reset();
+    byte[] out = new byte[(int) size];
+    int produced = 0;
     
     try {
       while (!inflater.finished()) {
         if (inflater.needsInput()) {
-          int read = in.read(inputBuffer);
-          if (read == -1) {
-            break;
-          }
-          inflater.setInput(inputBuffer, 0, read);
-          lastInputSize = read;
+          in.require(1);
+          inflater.setInput(in.window);
         }
         
-        int decompressed = inflater.inflate(outputBuffer);
-        if (decompressed > 0) {
-          out.write(outputBuffer, 0, decompressed);
+        // The header gave the exact size; a spare byte only drives the stream to its end
+        int n = produced < out.length
+          ? inflater.inflate(out, produced, out.length - produced)
+          : inflater.inflate(in.spare);
+        if (produced == out.length && n > 0) {
+          throw new RuntimeException("Corrupt packfile: object larger than its header size " + size);
+        }
+        produced += n;
+        
+        if (n == 0 && inflater.needsDictionary()) {
+          throw new RuntimeException("Corrupt packfile: zlib stream needs a preset dictionary");
         }
       }
-      
-      // Push back unused bytes to the stream (if PushbackInputStream)
-      int remaining = inflater.getRemaining();
-      if (remaining > 0 && in instanceof PushbackInputStream) {
-        // The remaining bytes are at the end of the last input we gave to the inflater
-        byte[] unusedBytes = new byte[remaining];
-        System.arraycopy(inputBuffer, lastInputSize - remaining, unusedBytes, 0, remaining);
-        ((PushbackInputStream) in).unread(unusedBytes);
-      }
-      
-    } catch (java.util.zip.DataFormatException e) {
-      throw new IOException("Failed to decompress data", e);
-    } finally {
-      inflater.end();
+    } catch (DataFormatException e) {
+      throw new RuntimeException("Corrupt packfile: failed to decompress object", e);
     }
     
-    return out.toByteArray();
+    if (produced != out.length) {
+      throw new RuntimeException("Corrupt packfile: object is " + produced + " bytes, header says " + size);
+    }
+    Stats.INFLATE_IN.add(inflater.getBytesRead());
+    Stats.INFLATE_OUT.add(produced);
+    
+    return out;
   }
   
-  // Resolve and store object
-  static void resolveObject(PackObject obj, List<PackObject> allObjects, 
-                           Map<String, byte[]> objectData, File gitDir) throws Exception {
+  // Resolve and store object. Delta bases come from the base cache, or are re-read from the
+  // loose object written when the base was stored, or from the pack when one is given.
+  static void resolveObject(PackObject obj, ObjectTable table, DeltaBaseCache cache,
+                            File gitDir, PackFile pack) throws Exception {
     if (obj.resolved) return;
     
     byte[] data;
-    String typeStr;
+    int type;
+    int depth = 0;
     
     if (obj.type == 6 || obj.type == 7) {
       // Deltified object - need to resolve base first
-      byte[] baseData;
+      int baseSlot = obj.type == 6
+        ? table.findByOffset(obj.offset - obj.deltaOffset)   // OFS_DELTA - find base by offset
+        : table.find(obj.baseSha);                           // REF_DELTA - find base by id
+      if (baseSlot < 0 && obj.type == 6) {
+        return; // Can't resolve yet
+      }
       
-      if (obj.type == 6) {
-        // OFS_DELTA - find base by offset
-        return;
-      } else {
-        // REF_DELTA
-        baseData = objectData.get(obj.baseHash);
-        if (baseData == null) {
-          // Try to load from disk
-          baseData = loadObjectFromDisk(gitDir, obj.baseHash);
+      byte[] baseData = baseSlot >= 0 ? cache.get(table.offsets[baseSlot]) : null;
+      int baseType = baseSlot >= 0 ? table.types[baseSlot] : 0;
+      depth = baseSlot >= 0 ? (table.depths[baseSlot] & 0xFF) + 1 : 1;
+      if (baseData == null && baseSlot >= 0 && pack != null) {
+        // No loose copy to fall back on: read the evicted base back out of the pack
+        baseData = pack.content(table.offsets[baseSlot], true);
+        if (baseType == 0) {
+          // Entries from a resumed clone carry no type
+          baseType = pack.type(table.offsets[baseSlot]);
+          table.types[baseSlot] = (byte) baseType;
         }
-        if (baseData == null) {
+      }
+      if (baseData == null) {
+        // Try to load from disk; REF_DELTA bases may also predate this pack
+        byte[] baseSha = baseSlot >= 0 ? table.sha(baseSlot) : obj.baseSha;
+        byte[] baseObject = loadRawObjectFromDisk(gitDir, bytesToHex(baseSha));
+        if (baseObject == null) {
           return; // Can't resolve yet
         }
+        
+        int headerEnd = 0;
+        while (baseObject[headerEnd] != 0) headerEnd++;
+        baseData = Arrays.copyOfRange(baseObject, headerEnd + 1, baseObject.length);
+        baseType = objectTypeCode(getObjectType(baseObject));
       }
       
       data = applyDelta(baseData, obj.data);
-      
-      String baseType = getObjectType(baseData);
-      typeStr = baseType;
+      type = baseType;
     } else {
       // Regular object
       data = obj.data;
-      typeStr = switch (obj.type) {
-        case 1 -> "commit";
-        case 2 -> "tree";
-        case 3 -> "blob";
-        case 4 -> "tag";
-        default -> throw new RuntimeException("Unknown object type: " + obj.type);
-      };
+      type = obj.type;
     }
     
+    String typeStr = typeName(type);
+    
     // Create full object with header
     String header = typeStr + " " + data.length + "\0";
     byte[] headerBytes = header.getBytes();
@@ -868,23 +1946,42 @@ public class Main {
     // Compute hash
     MessageDigest digest = MessageDigest.getInstance("SHA-1");
     byte[] hashBytes = digest.digest(fullObject);
-    String hash = bytesToHex(hashBytes);
-    
-    // Store object
-    String dirName = hash.substring(0, 2);
-    String fileName = hash.substring(2);
-    File objectDir = new File(gitDir, "objects/" + dirName);
-    objectDir.mkdirs();
     
-    File objectFile = new File(objectDir, fileName);
-    try (FileOutputStream fos = new FileOutputStream(objectFile);
-         DeflaterOutputStream dos = new DeflaterOutputStream(fos)) {
-      dos.write(fullObject);
+    // Store object, unless it stays in a pack that is being kept anyway
+    if (pack == null) {
+      writeLooseObject(gitDir, bytesToHex(hashBytes), fullObject);
     }
     
-    objectData.put(hash, data);
+    int slot = table.insert(hashBytes, obj.offset, (int) obj.crc, type);
+    table.depths[slot] = (byte) Math.min(depth, 255);
+    cache.put(obj.offset, data);
+    Stats.OBJECTS.increment();
+    Stats.DELTA_DEPTHS.incrementAndGet(Math.min(depth, Stats.DELTA_DEPTHS.length() - 1));
     obj.resolved = true;
-    obj.hash = hash;
+    obj.sha = hashBytes;
+    obj.data = data;
+  }
+  
+  // Object type name for a pack type code
+  static String typeName(int type) {
+    return switch (type) {
+      case 1 -> "commit";
+      case 2 -> "tree";
+      case 3 -> "blob";
+      case 4 -> "tag";
+      default -> throw new RuntimeException("Unknown object type: " + type);
+    };
+  }
+  
+  // Pack type code for an object type name
+  static int objectTypeCode(String type) {
+    return switch (type) {
+      case "commit" -> 1;
+      case "tree" -> 2;
+      case "blob" -> 3;
+      case "tag" -> 4;
+      default -> throw new RuntimeException("Unknown object type: " + type);
+    };
   }
   
   // Apply delta to base data
@@ -943,38 +2040,89 @@ public class Main {
     return value;
   }
   
-  // Load object from disk
+  // Load object content (without header) from disk
   static byte[] loadObjectFromDisk(File gitDir, String hash) {
+    byte[] decompressed = loadRawObjectFromDisk(gitDir, hash);
+    if (decompressed == null) return null;
+    
+    // Find null byte
+    int nullIndex = -1;
+    for (int i = 0; i < decompressed.length; i++) {
+      if (decompressed[i] == 0) {
+        nullIndex = i;
+        break;
+      }
+    }
+    
+    if (nullIndex == -1) return null;
+    
+    return Arrays.copyOfRange(decompressed, nullIndex + 1, decompressed.length);
+  }
+  
+  // Load full object (header and content) from disk, here or in an alternate object store
+  static byte[] loadRawObjectFromDisk(File gitDir, String hash) {
     try {
       String dirName = hash.substring(0, 2);
       String fileName = hash.substring(2);
-      File objectFile = new File(gitDir, "objects/" + dirName + "/" + fileName);
-      
-      if (!objectFile.exists()) return null;
-      
-      try (FileInputStream fis = new FileInputStream(objectFile);
-           InflaterInputStream iis = new InflaterInputStream(fis)) {
+      for (File store : objectStores(gitDir)) {
+        File objectFile = new File(store, "objects/" + dirName + "/" + fileName);
+        if (!objectFile.exists()) continue;
         
-        byte[] decompressed = iis.readAllBytes();
-        
-        // Find null byte
-        int nullIndex = -1;
-        for (int i = 0; i < decompressed.length; i++) {
-          if (decompressed[i] == 0) {
-            nullIndex = i;
-            break;
-          }
+        try (FileInputStream fis = new FileInputStream(objectFile);
+             InflaterInputStream iis = new InflaterInputStream(fis)) {
+          return iis.readAllBytes();
         }
-        
-        if (nullIndex == -1) return null;
-        
-        return Arrays.copyOfRange(decompressed, nullIndex + 1, decompressed.length);
       }
+      return loadRawObjectFromPacks(gitDir, hash);
     } catch (IOException e) {
       return null;
     }
   }
   
+  // Repositories whose objects this one reads, per repository: itself first, then the object
+  // directories its objects/info/alternates lists (as the git directories holding them),
+  // following their own alternates as git does. Read once; clone updates it as it adds some.
+  static final Map<File, List<File>> OBJECT_STORES = new ConcurrentHashMap<>();
+  
+  static List<File> objectStores(File gitDir) {
+    return OBJECT_STORES.computeIfAbsent(gitDir.getAbsoluteFile(), key -> {
+      List<File> stores = new ArrayList<>();
+      try {
+        addObjectStores(key, stores, 0);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      return List.copyOf(stores);
+    });
+  }
+  
+  static void addObjectStores(File gitDir, List<File> stores, int depth) throws IOException {
+    if (stores.contains(gitDir) || depth > 5) return;
+    stores.add(gitDir);
+    
+    File objects = new File(gitDir, "objects");
+    File alternates = new File(objects, "info/alternates");
+    if (!alternates.isFile()) return;
+    for (String line : Files.readAllLines(alternates.toPath())) {
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) continue;
+      File alternate = new File(line).isAbsolute() ? new File(line) : new File(objects, line);
+      addObjectStores(alternate.getCanonicalFile().getParentFile(), stores, depth + 1);
+    }
+  }
+  
+  // Borrow the objects of another repository by listing its object directory in alternates
+  static void addAlternate(File gitDir, File otherGitDir) throws IOException {
+    String path = new File(otherGitDir, "objects").getCanonicalPath();
+    File alternates = new File(gitDir, "objects/info/alternates");
+    List<String> lines = alternates.isFile() ? Files.readAllLines(alternates.toPath()) : List.of();
+    if (!lines.contains(path)) {
+      alternates.getParentFile().mkdirs();
+      Files.writeString(alternates.toPath(), path + "\n", StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+    OBJECT_STORES.remove(gitDir.getAbsoluteFile());
+  }
+  
   // Get object type from object data
   static String getObjectType(byte[] fullObjectWithHeader) {
     for (int i = 0; i < fullObjectWithHeader.length; i++) {
@@ -986,12 +2134,12 @@ public class Main {
   }
   
   // Convert bytes to hex string
+  static String bytesToHex(byte[] bytes, int offset, int length) {
+    return HexFormat.of().formatHex(bytes, offset, offset + length);
+  }
+  
   static String bytesToHex(byte[] bytes) {
-    StringBuilder sb = new StringBuilder();
-    for (byte b : bytes) {
-      sb.append(String.format("%02x", b));
-    }
-    return sb.toString();
+    return HexFormat.of().formatHex(bytes);
   }
   
   // Checkout commit to working directory
@@ -1002,74 +2150,70 @@ public class Main {
       throw new RuntimeException("Commit not found: " + commitSha);
     }
     
-    // Parse commit to find tree
-    String commitContent = new String(commitData);
-    String[] lines = commitContent.split("\n");
-    String treeSha = null;
-    
-    for (String line : lines) {
-      if (line.startsWith("tree ")) {
-        treeSha = line.substring(5).trim();
-        break;
-      }
-    }
-    
-    if (treeSha == null) {
-      throw new RuntimeException("No tree found in commit");
-    }
-    
     // Checkout tree
-    checkoutTree(workDir, gitDir, treeSha, "");
+    checkoutTree(workDir, gitDir, Commit.parse(commitData, 0).tree, "", SparseCheckout.load(gitDir));
   }
   
-  // Recursively checkout tree
-  static void checkoutTree(File workDir, File gitDir, String treeSha, String prefix) throws Exception {
+  // Recursively checkout tree, leaving out directories outside the sparse cone (if any)
+  static void checkoutTree(File workDir, File gitDir, String treeSha, String prefix, SparseCheckout sparse)
+      throws Exception {
     byte[] treeData = loadObjectFromDisk(gitDir, treeSha);
     if (treeData == null) {
       throw new RuntimeException("Tree not found: " + treeSha);
     }
     
-    // Parse tree entries
-    int pos = 0;
-    while (pos < treeData.length) {
-      // Read mode
-      int spacePos = pos;
-      while (spacePos < treeData.length && treeData[spacePos] != ' ') {
-        spacePos++;
-      }
-      String mode = new String(treeData, pos, spacePos - pos);
-      pos = spacePos + 1;
-      
-      // Read name
-      int nullPos = pos;
-      while (nullPos < treeData.length && treeData[nullPos] != 0) {
-        nullPos++;
-      }
-      String name = new String(treeData, pos, nullPos - pos);
-      pos = nullPos + 1;
-      
-      // Read hash
-      if (pos + 20 > treeData.length) break;
-      byte[] hashBytes = Arrays.copyOfRange(treeData, pos, pos + 20);
-      String hash = bytesToHex(hashBytes);
-      pos += 20;
+    TreeIterator entry = new TreeIterator(treeData);
+    while (entry.next()) {
+      String hash = entry.id();
       
       // Create file or directory
-      String path = prefix + name;
+      String path = prefix + entry.name();
       File file = new File(workDir, path);
       
-      if (mode.equals("40000")) {
+      if (entry.isTree()) {
         // Directory
+        if (sparse != null && !sparse.includes(path)) continue;
         file.mkdirs();
-        checkoutTree(workDir, gitDir, hash, path + "/");
-      } else {
-        // File
+        checkoutTree(workDir, gitDir, hash, path + "/", sparse);
+      } else if (entry.mode != 0160000) {
+        // File; submodule commits are not in this repository
         byte[] blobData = loadObjectFromDisk(gitDir, hash);
+        if (blobData == null) {
+          throw new RuntimeException("Blob not found: " + hash);
+        }
+        Files.write(file.toPath(), blobData);
+        
+        // Set executable if needed
+        if (entry.mode == 0100755) {
+          file.setExecutable(true);
+        }
+      }
+    }
+  }
+  
+  // Bring a checkout in line with a changed sparse cone: directories that left it are removed,
+  // ones that joined are checked out, and files already on disk are left as they are
+  static void updateSparseCheckout(File workDir, File gitDir, String treeSha, String prefix, SparseCheckout sparse)
+      throws Exception {
+    TreeIterator entry = new TreeIterator(loadTree(gitDir, treeSha));
+    while (entry.next()) {
+      String path = prefix + entry.name();
+      File file = new File(workDir, path);
+      
+      if (entry.isTree()) {
+        if (!sparse.includes(path)) {
+          if (file.exists()) deleteRecursively(file);
+        } else if (file.isDirectory()) {
+          updateSparseCheckout(workDir, gitDir, entry.id(), path + "/", sparse);
+        } else {
+          file.mkdirs();
+          checkoutTree(workDir, gitDir, entry.id(), path + "/", sparse);
+        }
+      } else if (entry.mode != 0160000 && !file.exists()) {
+        byte[] blobData = loadObjectFromDisk(gitDir, entry.id());
         if (blobData != null) {
           Files.write(file.toPath(), blobData);
-          
-          // Set executable if needed
-          if (mode.equals("100755")) {
+          if (entry.mode == 0100755) {
             file.setExecutable(true);
           }
         }
@@ -1077,14 +2221,4256 @@ public class Main {
     }
   }
   
-  // Pack object class
-  static class PackObject {
-    int type;
-    long size;
-    byte[] data;
-    long deltaOffset;
-    String baseHash;
-    boolean resolved;
-    String hash;
+  // Resolve HEAD, a branch or tag name, a full ref name or a full object id to an object id
+  static String resolveRevision(File gitDir, String rev) throws IOException {
+    if (rev.length() == 40 && rev.chars().allMatch(c -> Character.digit(c, 16) >= 0)) {
+      return rev.toLowerCase();
+    }
+    
+    String[] candidates = rev.equals("HEAD") || rev.startsWith("refs/")
+      ? new String[] { rev }
+      : new String[] { rev, "refs/heads/" + rev, "refs/tags/" + rev };
+    for (String name : candidates) {
+      String sha = readRef(gitDir, name);
+      if (sha != null) return sha;
+    }
+    throw new RuntimeException("Unknown revision: " + rev);
+  }
+  
+  // Read a loose or packed ref, following symbolic refs; null if it does not exist
+  static String readRef(File gitDir, String name) throws IOException {
+    for (int depth = 0; depth < 5; depth++) {
+      File file = new File(gitDir, name);
+      if (!file.isFile()) {
+        return readPackedRefs(gitDir).get(name);
+      }
+      
+      String value = Files.readString(file.toPath()).trim();
+      if (!value.startsWith("ref: ")) return value;
+      name = value.substring(5);
+    }
+    throw new RuntimeException("Symbolic ref loop at " + name);
+  }
+  
+  // Refs from .git/packed-refs, name to object id
+  static Map<String, String> readPackedRefs(File gitDir) throws IOException {
+    Map<String, String> refs = new LinkedHashMap<>();
+    File file = new File(gitDir, "packed-refs");
+    if (!file.isFile()) return refs;
+    
+    for (String line : Files.readAllLines(file.toPath())) {
+      if (line.length() > 41 && line.charAt(40) == ' ' && !line.startsWith("#")) {
+        refs.put(line.substring(41), line.substring(0, 40));
+      }
+    }
+    return refs;
+  }
+  
+  // Every ref under refs/, loose or packed, name to object id; symbolic refs are left out
+  static Map<String, String> readRefs(File gitDir) throws IOException {
+    Map<String, String> refs = readPackedRefs(gitDir);
+    List<File> pending = new ArrayList<>(List.of(new File(gitDir, "refs")));
+    while (!pending.isEmpty()) {
+      File dir = pending.remove(pending.size() - 1);
+      File[] children = dir.listFiles();
+      if (children == null) continue;
+      for (File child : children) {
+        if (child.isDirectory()) {
+          pending.add(child);
+        } else {
+          String value = Files.readString(child.toPath()).trim();
+          String name = gitDir.toPath().relativize(child.toPath()).toString().replace(File.separatorChar, '/');
+          if (!value.startsWith("ref: ")) refs.put(name, value);
+        }
+      }
+    }
+    return refs;
+  }
+  
+  // Object ids of every ref tip: HEAD, loose refs and packed refs
+  static Set<String> listRefTips(File gitDir) throws IOException {
+    Set<String> tips = new LinkedHashSet<>();
+    String head = readRef(gitDir, "HEAD");
+    if (head != null) tips.add(head);
+    
+    List<File> pending = new ArrayList<>(List.of(new File(gitDir, "refs")));
+    while (!pending.isEmpty()) {
+      File dir = pending.remove(pending.size() - 1);
+      File[] children = dir.listFiles();
+      if (children == null) continue;
+      for (File child : children) {
+        if (child.isDirectory()) {
+          pending.add(child);
+        } else {
+          tips.add(Files.readString(child.toPath()).trim());
+        }
+      }
+    }
+    
+    tips.addAll(readPackedRefs(gitDir).values());
+    tips.removeIf(tip -> tip.startsWith("ref: "));
+    return tips;
+  }
+  
+  // Follow annotated tags down to the commit they name; null for anything that is not a commit
+  static String peelToCommit(File gitDir, String hash) {
+    for (int depth = 0; depth < 10; depth++) {
+      byte[] raw = loadRawObjectFromDisk(gitDir, hash);
+      if (raw == null) {
+        throw new RuntimeException("Object not found: " + hash);
+      }
+      
+      String type = getObjectType(raw);
+      if (type.equals("commit")) return hash;
+      if (!type.equals("tag")) return null;
+      
+      // A tag starts with "object <sha>"
+      int content = indexOf(raw, (byte) 0, 0) + 1;
+      if (!startsWith(raw, content, "object ")) {
+        throw new RuntimeException("Malformed tag: " + hash);
+      }
+      hash = new String(raw, content + 7, 40, StandardCharsets.US_ASCII);
+    }
+    throw new RuntimeException("Tag chain too deep at " + hash);
+  }
+  
+  static int indexOf(byte[] data, byte value, int from) {
+    for (int i = from; i < data.length; i++) {
+      if (data[i] == value) return i;
+    }
+    return -1;
+  }
+  
+  static boolean startsWith(byte[] data, int pos, String prefix) {
+    if (pos + prefix.length() > data.length) return false;
+    for (int i = 0; i < prefix.length(); i++) {
+      if (data[pos + i] != prefix.charAt(i)) return false;
+    }
+    return true;
+  }
+  
+  static byte[] hexToBytes(String hex) {
+    byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) ((Character.digit(hex.charAt(i * 2), 16) << 4) | Character.digit(hex.charAt(i * 2 + 1), 16));
+    }
+    return bytes;
+  }
+  
+  static final DateTimeFormatter LOG_DATE_FORMAT = DateTimeFormatter.ofPattern("EEE MMM d HH:mm:ss yyyy Z", Locale.US);
+  
+  // Print one commit the way git log does by default, or as "<abbrev> <subject>" with --oneline
+  static void printLogEntry(Writer out, File gitDir, String hash, boolean oneline, boolean first) throws IOException {
+    byte[] content = loadObjectFromDisk(gitDir, hash);
+    if (content == null) {
+      throw new RuntimeException("Commit not found: " + hash);
+    }
+    Commit commit = Commit.parse(content, 0);
+    String message = new String(content, commit.messageStart, content.length - commit.messageStart, StandardCharsets.UTF_8);
+    
+    if (oneline) {
+      int newline = message.indexOf('\n');
+      out.write(hash.substring(0, 7) + " " + (newline < 0 ? message : message.substring(0, newline)) + "\n");
+      return;
+    }
+    
+    if (!first) out.write("\n");
+    out.write("commit " + hash + "\n");
+    if (commit.parents.size() > 1) {
+      out.write("Merge:");
+      for (String parent : commit.parents) out.write(" " + parent.substring(0, 7));
+      out.write("\n");
+    }
+    
+    // "Name <email> <seconds> <zone>"
+    String author = commit.author == null ? "" : commit.author;
+    int emailEnd = author.lastIndexOf('>');
+    out.write("Author: " + author.substring(0, emailEnd + 1) + "\n");
+    String[] when = author.substring(emailEnd + 1).trim().split(" ");
+    if (when.length == 2) {
+      ZonedDateTime date = Instant.ofEpochSecond(Long.parseLong(when[0])).atZone(ZoneOffset.of(when[1]));
+      out.write("Date:   " + LOG_DATE_FORMAT.format(date) + "\n");
+    }
+    
+    out.write("\n");
+    for (String line : message.stripTrailing().split("\n", -1)) {
+      out.write("    " + line + "\n");
+    }
+  }
+  
+  // Pack a repository's loose objects (and with all, the objects of its existing packs too) into
+  // one new pack of OFS_DELTA chains plus .idx. With prune, the loose files and old packs the new
+  // pack makes redundant are deleted. Returns the new pack, or null if there was nothing to pack.
+  static File repack(File gitDir, boolean all, boolean prune, int window, int maxDepth, int threads) throws Exception {
+    Map<String, RepackEntry> entries = new LinkedHashMap<>();
+    List<File> looseFiles = new ArrayList<>();
+    List<PackFile> oldPacks = all ? openPacks(gitDir, true) : List.of();
+    
+    try (Stats.Phase phase = Stats.begin("count-objects")) {
+      File[] fanout = new File(gitDir, "objects").listFiles(f -> f.isDirectory() && f.getName().matches("[0-9a-f]{2}"));
+      for (File dir : fanout == null ? new File[0] : fanout) {
+        File[] files = dir.listFiles(f -> f.getName().matches("[0-9a-f]{38}"));
+        for (File file : files == null ? new File[0] : files) {
+          looseFiles.add(file);
+          entries.computeIfAbsent(dir.getName() + file.getName(), RepackEntry::new);
+        }
+      }
+      for (PackFile pack : oldPacks) {
+        for (int pos = 0; pos < pack.count; pos++) {
+          entries.computeIfAbsent(bytesToHex(pack.sha(pos)), RepackEntry::new);
+        }
+      }
+      if (entries.isEmpty()) return null;
+      
+      for (RepackEntry entry : entries.values()) {
+        readObjectHeader(gitDir, entry);
+      }
+      assignNameHashes(gitDir, entries);
+    }
+    
+    List<RepackEntry> sorted = new ArrayList<>(entries.values());
+    sorted.sort(Main::deltaSearchOrder);
+    
+    try (Stats.Phase phase = Stats.begin("delta-search")) {
+      findDeltasInParallel(gitDir, sorted, window, maxDepth, threads);
+    }
+    
+    File pack;
+    try (Stats.Phase phase = Stats.begin("write-pack")) {
+      pack = writeRepackedPack(gitDir, sorted);
+    }
+    
+    int deltas = 0;
+    for (RepackEntry entry : sorted) {
+      if (entry.base != null) deltas++;
+    }
+    System.out.println("Total " + sorted.size() + " (delta " + deltas + "), " + pack.getName());
+    
+    if (prune) {
+      try (Stats.Phase phase = Stats.begin("prune-packed")) {
+        for (File file : looseFiles) {
+          Files.deleteIfExists(file.toPath());
+          file.getParentFile().delete(); // only succeeds once the fanout directory is empty
+        }
+        for (PackFile old : oldPacks) {
+          if (old.packFile.getName().equals(pack.getName())) continue;
+          if (new File(old.packFile.getPath().replaceAll("\\.pack$", ".keep")).exists()) continue;
+          old.close();
+          Files.deleteIfExists(old.idxFile.toPath());
+          Files.deleteIfExists(old.packFile.toPath());
+        }
+      }
+    }
+    closePacks(gitDir);
+    return pack;
+  }
+  
+  // Similar objects end up next to each other: same type, same path hash, objects the remote
+  // already has (thin pack bases) first, then larger first. Commits sort first so history walks
+  // read the front of the pack.
+  static int deltaSearchOrder(RepackEntry a, RepackEntry b) {
+    if (a.type != b.type) return Integer.compare(a.type, b.type);
+    if (a.nameHash != b.nameHash) return Integer.compareUnsigned(b.nameHash, a.nameHash);
+    if (a.preferredBase != b.preferredBase) return a.preferredBase ? -1 : 1;
+    return Long.compare(b.size, a.size);
+  }
+  
+  // Type and size of an object without loading all of it
+  static void readObjectHeader(File gitDir, RepackEntry entry) throws IOException {
+    for (File store : objectStores(gitDir)) {
+      File loose = new File(store, "objects/" + entry.hash.substring(0, 2) + "/" + entry.hash.substring(2));
+      if (!loose.exists()) continue;
+      
+      try (InflaterInputStream iis = new InflaterInputStream(new FileInputStream(loose))) {
+        byte[] header = new byte[32];
+        int n = 0;
+        int b;
+        while (n < header.length && (b = iis.read()) > 0) header[n++] = (byte) b;
+        String[] parts = new String(header, 0, n, StandardCharsets.US_ASCII).split(" ");
+        entry.type = objectTypeCode(parts[0]);
+        entry.size = Long.parseLong(parts[1]);
+        return;
+      }
+    }
+    
+    byte[] sha = hexToBytes(entry.hash);
+    for (File store : objectStores(gitDir)) {
+      for (PackFile pack : openPacks(store, false)) {
+        int pos = pack.find(sha);
+        if (pos >= 0) {
+          entry.type = pack.type(pack.offset(pos));
+          entry.size = pack.size(pack.offset(pos));
+          return;
+        }
+      }
+    }
+    throw new RuntimeException("Object not found: " + entry.hash);
+  }
+  
+  // Give every object reachable from the refs the hash of the path it was found at, so the
+  // delta search sees versions of the same file side by side. Unreachable objects keep 0.
+  static void assignNameHashes(File gitDir, Map<String, RepackEntry> entries) throws IOException {
+    Set<String> seen = new HashSet<>();
+    List<String> commits = new ArrayList<>();
+    for (String tip : listRefTips(gitDir)) {
+      String commit = peelToCommit(gitDir, tip);
+      if (commit != null) commits.add(commit);
+    }
+    
+    while (!commits.isEmpty()) {
+      String hash = commits.remove(commits.size() - 1);
+      if (!seen.add(hash)) continue;
+      byte[] content = loadObjectFromDisk(gitDir, hash);
+      if (content == null) continue;
+      
+      Commit commit = Commit.parse(content, 0);
+      commits.addAll(commit.parents);
+      walkTree(gitDir, commit.tree, seen::add, (path, child) -> {
+        RepackEntry entry = entries.get(child);
+        if (entry != null && entry.nameHash == 0) entry.nameHash = nameHash(path);
+      });
+    }
+  }
+  
+  // Visit a tree and everything below it as (path, hash), without recursion. A subtree is only
+  // entered when enter accepts its hash; missing trees are skipped.
+  static void walkTree(File gitDir, String treeHash, Predicate<String> enter, BiConsumer<String, String> visit) {
+    visit.accept("", treeHash);
+    if (!enter.test(treeHash)) return;
+    
+    List<String[]> trees = new ArrayList<>(); // {hash, path prefix}
+    trees.add(new String[] { treeHash, "" });
+    while (!trees.isEmpty()) {
+      String[] tree = trees.remove(trees.size() - 1);
+      byte[] data = loadObjectFromDisk(gitDir, tree[0]);
+      if (data == null) continue;
+      
+      TreeIterator entry = new TreeIterator(data);
+      while (entry.next()) {
+        String child = entry.id();
+        String path = tree[1] + entry.name();
+        
+        visit.accept(path, child);
+        if (entry.isTree() && enter.test(child)) {
+          trees.add(new String[] { child, path + "/" });
+        }
+      }
+    }
+  }
+  
+  // Receives one differing entry of a tree diff; the missing side of an addition or deletion
+  // has mode 0 and a null id
+  interface TreeDiffVisitor {
+    void change(String path, int oldMode, String oldId, int newMode, String newId) throws IOException;
+  }
+  
+  // Compare two tree contents by walking both entry lists in lockstep in git's tree order.
+  // Entries with equal modes and ids are skipped without loading anything, so an unchanged
+  // subtree costs one 20-byte comparison and the walk scales with the change, not the tree.
+  // A recursive diff descends into differing subtrees and reports only the entries under them.
+  static void diffTrees(File gitDir, byte[] oldTree, byte[] newTree, String prefix, boolean recursive,
+      TreeDiffVisitor visitor) throws IOException {
+    TreeIterator a = new TreeIterator(oldTree);
+    TreeIterator b = new TreeIterator(newTree);
+    boolean hasA = a.next();
+    boolean hasB = b.next();
+    while (hasA || hasB) {
+      int cmp = !hasA ? 1 : !hasB ? -1 : a.compareTo(b);
+      if (cmp == 0) {
+        if (a.mode != b.mode || !a.sameId(b)) {
+          if (recursive && a.isTree() && b.isTree()) {
+            diffTrees(gitDir, loadTree(gitDir, a.id()), loadTree(gitDir, b.id()), prefix + a.name() + "/", true, visitor);
+          } else {
+            visitor.change(prefix + a.name(), a.mode, a.id(), b.mode, b.id());
+          }
+        }
+        hasA = a.next();
+        hasB = b.next();
+      } else if (cmp < 0) {
+        if (recursive && a.isTree()) {
+          diffTrees(gitDir, loadTree(gitDir, a.id()), new byte[0], prefix + a.name() + "/", true, visitor);
+        } else {
+          visitor.change(prefix + a.name(), a.mode, a.id(), 0, null);
+        }
+        hasA = a.next();
+      } else {
+        if (recursive && b.isTree()) {
+          diffTrees(gitDir, new byte[0], loadTree(gitDir, b.id()), prefix + b.name() + "/", true, visitor);
+        } else {
+          visitor.change(prefix + b.name(), 0, null, b.mode, b.id());
+        }
+        hasB = b.next();
+      }
+    }
+  }
+  
+  // Content of a tree object
+  static byte[] loadTree(File gitDir, String hash) {
+    byte[] raw = loadRawObjectFromDisk(gitDir, hash);
+    if (raw == null) {
+      throw new RuntimeException("Object not found: " + hash);
+    }
+    if (!getObjectType(raw).equals("tree")) {
+      throw new RuntimeException("Not a tree: " + hash);
+    }
+    int content = indexOf(raw, (byte) 0, 0) + 1;
+    return Arrays.copyOfRange(raw, content, raw.length);
+  }
+  
+  // Write a tree listing in ls-tree's formats, "<mode> <type> <id>[ <size>]\t<path>" or just the
+  // path. Modes, ids and names are copied from the tree buffers as bytes; the only allocation
+  // per entry is the size lookup of -l.
+  static void listTree(File gitDir, byte[] tree, byte[] prefix, boolean recursive, boolean showTrees,
+      boolean nameOnly, boolean sizes, OutputStream out) throws IOException {
+    TreeIterator entry = new TreeIterator(tree);
+    while (entry.next()) {
+      boolean descend = recursive && entry.isTree();
+      if (!descend || showTrees) {
+        if (!nameOnly) {
+          entry.writeMode(out);
+          out.write(' ');
+          out.write(entry.isTree() ? TreeIterator.TREE : entry.mode == 0160000 ? TreeIterator.COMMIT : TreeIterator.BLOB);
+          out.write(' ');
+          entry.writeId(out);
+          if (sizes) {
+            String size = "-";
+            if (!entry.isTree() && entry.mode != 0160000) {
+              RepackEntry header = new RepackEntry(entry.id());
+              readObjectHeader(gitDir, header);
+              size = Long.toString(header.size);
+            }
+            out.write(' ');
+            for (int pad = size.length(); pad < 7; pad++) out.write(' ');
+            out.write(size.getBytes(StandardCharsets.US_ASCII));
+          }
+          out.write('\t');
+        }
+        out.write(prefix);
+        entry.writeName(out);
+        out.write('\n');
+      }
+      
+      if (descend) {
+        int length = entry.nameEnd - entry.nameStart;
+        byte[] path = Arrays.copyOf(prefix, prefix.length + length + 1);
+        System.arraycopy(entry.data, entry.nameStart, path, prefix.length, length);
+        path[path.length - 1] = '/';
+        listTree(gitDir, loadTree(gitDir, entry.id()), path, true, showTrees, nameOnly, sizes, out);
+      }
+    }
+  }
+  
+  // Tree named by a revision: a tree id, or anything that peels to a commit (tags, ~n, ^n)
+  static String resolveTree(File gitDir, String rev) throws IOException {
+    if (rev.indexOf('~') < 0 && rev.indexOf('^') < 0) {
+      String hash = resolveRevision(gitDir, rev);
+      byte[] raw = loadRawObjectFromDisk(gitDir, hash);
+      if (raw == null) {
+        throw new RuntimeException("Object not found: " + hash);
+      }
+      if (getObjectType(raw).equals("tree")) return hash;
+    }
+    CommitIndex index = new CommitIndex(gitDir);
+    return index.tree(index.resolve(rev));
+  }
+  
+  // git's pack name hash: the last characters of a path weigh the most
+  static int nameHash(String path) {
+    int hash = 0;
+    for (int i = 0; i < path.length(); i++) {
+      char c = path.charAt(i);
+      if (Character.isWhitespace(c)) continue;
+      hash = (hash >>> 2) + (c << 24);
+    }
+    return hash;
+  }
+  
+  // Split the sorted objects into one contiguous run per thread, cutting only between paths, and
+  // search each run for deltas independently. Bases always come from earlier in the same run.
+  static void findDeltasInParallel(File gitDir, List<RepackEntry> sorted, int window, int maxDepth,
+                                   int threads) throws Exception {
+    List<int[]> runs = new ArrayList<>();
+    int start = 0;
+    for (int t = 1; t <= threads && start < sorted.size(); t++) {
+      int end = (int) ((long) sorted.size() * t / threads);
+      while (end < sorted.size() && end > start
+             && sorted.get(end).type == sorted.get(end - 1).type
+             && sorted.get(end).nameHash == sorted.get(end - 1).nameHash) {
+        end++;
+      }
+      if (end > start) runs.add(new int[] { start, end });
+      start = end;
+    }
+    
+    AtomicLong deltaCache = new AtomicLong(REPACK_DELTA_CACHE_LIMIT);
+    ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, runs.size()), r -> {
+      Thread thread = new Thread(r, "delta-search");
+      thread.setDaemon(true);
+      return thread;
+    });
+    try {
+      List<Future<?>> results = new ArrayList<>();
+      for (int[] run : runs) {
+        results.add(workers.submit(() -> {
+          findDeltas(gitDir, sorted, run[0], run[1], window, maxDepth, deltaCache);
+          return null;
+        }));
+      }
+      for (Future<?> result : results) {
+        try {
+          result.get();
+        } catch (ExecutionException e) {
+          throw e.getCause() instanceof Exception cause ? cause : e;
+        }
+      }
+    } finally {
+      workers.shutdownNow();
+    }
+  }
+  
+  // Sliding-window delta search over sorted[from, to): each object is tried against the last
+  // window objects of its type and keeps the smallest delta that pays for itself. Deltas are
+  // kept deflated while the shared cache budget lasts; the rest are encoded again when written.
+  static void findDeltas(File gitDir, List<RepackEntry> sorted, int from, int to, int window, int maxDepth,
+                         AtomicLong deltaCache) throws IOException {
+    RepackEntry[] bases = new RepackEntry[window];
+    byte[][] baseData = new byte[window][];
+    DeltaIndex[] indexes = new DeltaIndex[window];
+    Deflater deflater = new Deflater();
+    int next = 0;
+    
+    try {
+      for (int i = from; i < to; i++) {
+        RepackEntry entry = sorted.get(i);
+        if (entry.size < REPACK_MIN_DELTA_SIZE || entry.size > REPACK_MAX_DELTA_SIZE || window == 0) continue;
+        byte[] data = loadObjectFromDisk(gitDir, entry.hash);
+        if (data == null) {
+          throw new RuntimeException("Object not found: " + entry.hash);
+        }
+        
+        byte[] best = null;
+        for (int w = 0; w < window && !entry.preferredBase; w++) {
+          RepackEntry base = bases[w];
+          if (base == null || base.type != entry.type || base.depth >= maxDepth) continue;
+          
+          // Deltas must save at least half the object, less the deeper the chain already is
+          long maxSize = best != null ? best.length - 1 : (entry.size / 2 - 20) * (maxDepth - base.depth) / maxDepth;
+          long sizeDiff = entry.size > base.size ? entry.size - base.size : 0;
+          if (maxSize <= 0 || sizeDiff >= maxSize || entry.size < base.size / 32) continue;
+          
+          if (indexes[w] == null) indexes[w] = new DeltaIndex(baseData[w]);
+          byte[] delta = indexes[w].encode(data, maxSize);
+          if (delta != null) {
+            best = delta;
+            entry.base = base;
+          }
+        }
+        
+        if (best != null) {
+          entry.depth = entry.base.depth + 1;
+          entry.deltaSize = best.length;
+          byte[] delta = deflate(deflater, best);
+          if (deltaCache.addAndGet(-delta.length) >= 0) {
+            entry.delta = delta;
+          }
+        }
+        
+        bases[next] = entry;
+        baseData[next] = data;
+        indexes[next] = null;
+        next = (next + 1) % window;
+      }
+    } finally {
+      deflater.end();
+    }
+  }
+  
+  static byte[] deflate(Deflater deflater, byte[] data) {
+    deflater.reset();
+    deflater.setInput(data);
+    deflater.finish();
+    ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 2));
+    byte[] buffer = new byte[8192];
+    while (!deflater.finished()) {
+      int n = deflater.deflate(buffer);
+      out.write(buffer, 0, n);
+    }
+    Stats.DEFLATE_IN.add(data.length);
+    Stats.DEFLATE_OUT.add(out.size());
+    return out.toByteArray();
+  }
+  
+  // Write the sorted objects as objects/pack/pack-<checksum>.pack with its index
+  static File writeRepackedPack(File gitDir, List<RepackEntry> sorted) throws IOException, NoSuchAlgorithmException {
+    File packDir = new File(gitDir, "objects/pack");
+    packDir.mkdirs();
+    File tmp = File.createTempFile("tmp_pack_", ".pack", packDir);
+    ObjectTable table = new ObjectTable(sorted.size());
+    byte[] packChecksum;
+    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16)) {
+      packChecksum = writePackEntries(out, gitDir, sorted, true, table);
+    }
+    
+    // The pack goes in place before its index, which is what makes it visible
+    String name = "pack-" + bytesToHex(packChecksum);
+    File pack = new File(packDir, name + ".pack");
+    Files.move(tmp.toPath(), pack.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    writePackIndex(new File(packDir, name + ".idx"), table, packChecksum);
+    return pack;
+  }
+  
+  // Stream the sorted objects as a pack and return its checksum. Bases sort before their deltas,
+  // so every OFS_DELTA points backwards; deltas against preferred bases, which are not written,
+  // go out as REF_DELTA. Objects are loaded one at a time, so memory does not grow with the pack.
+  // When a table is given, each written object is recorded in it for the index.
+  static byte[] writePackEntries(OutputStream sink, File gitDir, List<RepackEntry> sorted, boolean ofsDelta,
+                                 ObjectTable table) throws IOException, NoSuchAlgorithmException {
+    MessageDigest digest = MessageDigest.getInstance("SHA-1");
+    DigestOutputStream out = new DigestOutputStream(sink, digest);
+    Deflater deflater = new Deflater();
+    CRC32 crc = new CRC32();
+    
+    try {
+      int count = 0;
+      for (RepackEntry entry : sorted) {
+        if (!entry.preferredBase) count++;
+      }
+      ByteBuffer header = ByteBuffer.allocate(12);
+      header.putInt(0x5041434b).putInt(2).putInt(count);
+      out.write(header.array());
+      long position = 12;
+      
+      byte[] entryHeader = new byte[48];
+      for (RepackEntry entry : sorted) {
+        if (entry.preferredBase) continue;
+        entry.offset = position;
+        boolean isDelta = entry.base != null;
+        boolean isRefDelta = isDelta && (entry.base.preferredBase || !ofsDelta);
+        
+        byte[] data;
+        if (!isDelta) {
+          data = deflate(deflater, loadObjectFromDisk(gitDir, entry.hash));
+        } else if (entry.delta != null) {
+          data = entry.delta;
+        } else {
+          // Did not fit the delta cache: encode it again against the same base
+          byte[] delta = new DeltaIndex(loadObjectFromDisk(gitDir, entry.base.hash))
+            .encode(loadObjectFromDisk(gitDir, entry.hash), entry.deltaSize);
+          data = deflate(deflater, delta);
+        }
+        long size = isDelta ? entry.deltaSize : entry.size;
+        
+        // Type and size, then the base: distance back for OFS_DELTA, object id for REF_DELTA
+        int n = 0;
+        int b = ((isRefDelta ? 7 : isDelta ? 6 : entry.type) << 4) | (int) (size & 15);
+        size >>>= 4;
+        while (size != 0) {
+          entryHeader[n++] = (byte) (b | 0x80);
+          b = (int) (size & 0x7F);
+          size >>>= 7;
+        }
+        entryHeader[n++] = (byte) b;
+        if (isRefDelta) {
+          System.arraycopy(hexToBytes(entry.base.hash), 0, entryHeader, n, 20);
+          n += 20;
+        } else if (isDelta) {
+          long distance = entry.offset - entry.base.offset;
+          byte[] encoded = new byte[10];
+          int pos = encoded.length - 1;
+          encoded[pos] = (byte) (distance & 0x7F);
+          while ((distance >>>= 7) != 0) {
+            encoded[--pos] = (byte) (0x80 | (--distance & 0x7F));
+          }
+          System.arraycopy(encoded, pos, entryHeader, n, encoded.length - pos);
+          n += encoded.length - pos;
+        }
+        
+        crc.reset();
+        crc.update(entryHeader, 0, n);
+        crc.update(data);
+        out.write(entryHeader, 0, n);
+        out.write(data);
+        position += n + data.length;
+        
+        if (table != null) {
+          table.insert(hexToBytes(entry.hash), entry.offset, (int) crc.getValue(), entry.type);
+        }
+        entry.delta = null;
+        Stats.OBJECTS.increment();
+        Stats.DELTA_DEPTHS.incrementAndGet(Math.min(entry.depth, Stats.DELTA_DEPTHS.length() - 1));
+      }
+      
+      byte[] packChecksum = digest.digest();
+      out.on(false);
+      out.write(packChecksum);
+      out.flush();
+      return packChecksum;
+    } finally {
+      deflater.end();
+    }
+  }
+  
+  // Push a local branch to a smart HTTP remote: walk from the local tip down to the remote tips
+  // we have, send a thin pack of what the remote lacks streamed straight into a chunked request
+  // body, then read report-status
+  static void pushRepository(String repoUrl, String src, String dst, boolean force) throws Exception {
+    File gitDir = new File(".git");
+    Set<String> capabilities = new HashSet<>();
+    Map<String, String> remoteRefs;
+    try (Stats.Phase phase = Stats.begin("discover-refs")) {
+      remoteRefs = discoverRefs(repoUrl + "/info/refs?service=git-receive-pack", capabilities);
+    }
+    
+    String newSha = resolveRevision(gitDir, src);
+    String newCommit = peelToCommit(gitDir, newSha);
+    if (newCommit == null) {
+      throw new RuntimeException("Not a commit: " + src);
+    }
+    String oldSha = remoteRefs.getOrDefault(dst, ZERO_ID);
+    String shortSrc = src.replaceFirst("^refs/(heads|tags)/", "");
+    String shortDst = dst.replaceFirst("^refs/(heads|tags)/", "");
+    
+    System.out.println("To " + repoUrl);
+    if (oldSha.equals(newSha)) {
+      System.out.println("Everything up-to-date");
+      return;
+    }
+    
+    CommitIndex index = new CommitIndex(gitDir);
+    int tip = index.lookup(newCommit);
+    
+    // Only a fast-forward of the remote branch is allowed without force
+    boolean created = oldSha.equals(ZERO_ID);
+    String oldCommit = !created && hasObject(gitDir, oldSha) ? peelToCommit(gitDir, oldSha) : null;
+    boolean fastForward = oldCommit != null && index.isAncestor(index.lookup(oldCommit), tip);
+    if (!created && !fastForward && !force) {
+      String reason = oldCommit == null ? "fetch first" : "non-fast-forward";
+      System.err.println(" ! [rejected]        " + shortSrc + " -> " + shortDst + " (" + reason + ")");
+      EXIT_STATUS.set(1);
+      return;
+    }
+    
+    List<RepackEntry> sorted;
+    try (Stats.Phase phase = Stats.begin("count-objects")) {
+      sorted = objectsToPush(gitDir, index, tip, newSha, remoteRefs.values());
+    }
+    try (Stats.Phase phase = Stats.begin("delta-search")) {
+      findDeltasInParallel(gitDir, sorted, REPACK_WINDOW, REPACK_DEPTH, Runtime.getRuntime().availableProcessors());
+    }
+    
+    List<String> report = new ArrayList<>();
+    try (Stats.Phase phase = Stats.begin("send-pack")) {
+      HttpURLConnection conn = (HttpURLConnection) URI.create(repoUrl + "/git-receive-pack").toURL().openConnection();
+      conn.setRequestMethod("POST");
+      conn.setDoOutput(true);
+      conn.setChunkedStreamingMode(1 << 16);
+      conn.setRequestProperty("Content-Type", "application/x-git-receive-pack-request");
+      conn.setRequestProperty("Accept", "application/x-git-receive-pack-result");
+      conn.setRequestProperty("User-Agent", "git/");
+      
+      // One update command, then the pack, with nothing buffered beyond the stream buffer
+      try (OutputStream body = new BufferedOutputStream(conn.getOutputStream(), 1 << 16)) {
+        writePktLine(body, oldSha + " " + newSha + " " + dst + "\0report-status agent=git/java\n");
+        writePktLine(body, null);
+        writePackEntries(body, gitDir, sorted, capabilities.contains("ofs-delta"), null);
+      }
+      
+      int responseCode = conn.getResponseCode();
+      if (responseCode != 200) {
+        throw new IOException("HTTP error: " + responseCode + " " + conn.getResponseMessage());
+      }
+      try (InputStream in = new BufferedInputStream(conn.getInputStream())) {
+        String line;
+        while ((line = readPktLine(in)) != null) {
+          report.add(line.stripTrailing());
+        }
+      }
+    }
+    
+    // report-status: "unpack ok", then "ok <ref>" or "ng <ref> <reason>" per command
+    String unpack = report.isEmpty() ? "unpack no report" : report.get(0);
+    if (!unpack.equals("unpack ok")) {
+      System.err.println("error: remote unpack failed: " + unpack.replaceFirst("^unpack ", ""));
+      EXIT_STATUS.set(1);
+    }
+    for (String status : report.subList(Math.min(1, report.size()), report.size())) {
+      if (status.startsWith("ok ")) {
+        // Laid out like git: flag, summary padded to two abbreviated ids, then the refs
+        boolean forced = !created && !fastForward;
+        String summary = created ? (dst.startsWith("refs/tags/") ? "[new tag]" : "[new branch]")
+          : oldSha.substring(0, 7) + (forced ? "..." : "..") + newSha.substring(0, 7);
+        System.out.println(String.format(" %c %-17s %s -> %s%s", created ? '*' : forced ? '+' : ' ', summary,
+          shortSrc, shortDst, forced ? " (forced update)" : ""));
+      } else if (status.startsWith("ng ")) {
+        String[] parts = status.split(" ", 3);
+        System.err.println(" ! [remote rejected] " + shortSrc + " -> " + shortDst + " (" + (parts.length > 2 ? parts[2] : "rejected") + ")");
+        EXIT_STATUS.set(1);
+      }
+    }
+  }
+  
+  // Objects reachable from the pushed commit but not from the remote tips we have, in delta search
+  // order. Objects at the same paths in the boundary commits are added as preferred bases: they
+  // are never sent, but deltas against them go out as REF_DELTA, which makes the pack thin.
+  static List<RepackEntry> objectsToPush(File gitDir, CommitIndex index, int tip, String tipSha,
+                                         Collection<String> remoteTips) throws IOException {
+    List<Integer> exclude = new ArrayList<>();
+    for (String sha : remoteTips) {
+      if (sha.equals(ZERO_ID) || !hasObject(gitDir, sha)) continue;
+      String commit = peelToCommit(gitDir, sha);
+      if (commit != null) exclude.add(index.lookup(commit));
+    }
+    
+    List<Integer> commits = new ArrayList<>();
+    index.revList(List.of(tip), exclude, -1, commits::add);
+    
+    // Everything in the trees of the excluded parents is already on the remote
+    Set<Integer> sending = new HashSet<>(commits);
+    Set<String> haves = new HashSet<>();
+    Map<String, String> havePaths = new HashMap<>();
+    for (int id : commits) {
+      for (int parent : index.parents(id)) {
+        if (sending.contains(parent)) continue;
+        walkTree(gitDir, index.tree(parent), haves::add, (path, hash) -> havePaths.putIfAbsent(path, hash));
+      }
+    }
+    haves.addAll(havePaths.values());
+    
+    Map<String, RepackEntry> entries = new LinkedHashMap<>();
+    if (!tipSha.equals(index.hash(tip))) {
+      entries.put(tipSha, new RepackEntry(tipSha)); // annotated tag
+    }
+    Set<String> walked = new HashSet<>(haves);
+    for (int id : commits) {
+      String commit = index.hash(id);
+      entries.put(commit, new RepackEntry(commit));
+      walkTree(gitDir, index.tree(id), walked::add, (path, hash) -> {
+        if (haves.contains(hash) || entries.containsKey(hash)) return;
+        RepackEntry entry = new RepackEntry(hash);
+        entry.nameHash = nameHash(path);
+        entries.put(hash, entry);
+        
+        String previous = havePaths.get(path);
+        if (previous != null && !entries.containsKey(previous)) {
+          RepackEntry base = new RepackEntry(previous);
+          base.nameHash = entry.nameHash;
+          base.preferredBase = true;
+          entries.put(previous, base);
+        }
+      });
+    }
+    
+    for (RepackEntry entry : entries.values()) {
+      readObjectHeader(gitDir, entry);
+    }
+    List<RepackEntry> sorted = new ArrayList<>(entries.values());
+    sorted.sort(Main::deltaSearchOrder);
+    return sorted;
+  }
+  
+  // Whether an object exists loose or in a pack, here or in an alternate, without inflating it
+  static boolean hasObject(File gitDir, String hash) throws IOException {
+    if (isBorrowed(objectStores(gitDir), hash.substring(0, 2) + "/" + hash.substring(2))) return true;
+    
+    byte[] sha = hexToBytes(hash);
+    for (boolean rescan : new boolean[] { false, true }) {
+      for (File store : objectStores(gitDir)) {
+        for (PackFile pack : openPacks(store, rescan)) {
+          if (pack.find(sha) >= 0) return true;
+        }
+      }
+    }
+    return false;
+  }
+  
+  // Read one pkt-line; null for a flush-pkt or the end of the stream
+  static String readPktLine(InputStream in) throws IOException {
+    byte[] lengthBytes = in.readNBytes(4);
+    if (lengthBytes.length < 4) return null;
+    int length = Integer.parseInt(new String(lengthBytes, StandardCharsets.US_ASCII), 16);
+    if (length == 0) return null;
+    
+    byte[] content = in.readNBytes(length - 4);
+    if (content.length < length - 4) {
+      throw new EOFException("Truncated pkt-line");
+    }
+    return new String(content, StandardCharsets.UTF_8);
+  }
+  
+  // Packs opened per repository, refreshed from objects/pack when a lookup misses
+  static final Map<File, List<PackFile>> PACKS = new HashMap<>();
+  
+  static synchronized List<PackFile> openPacks(File gitDir, boolean rescan) throws IOException {
+    File key = gitDir.getAbsoluteFile();
+    List<PackFile> packs = PACKS.get(key);
+    if (packs != null && !rescan) return packs;
+    
+    Map<String, PackFile> open = new HashMap<>();
+    if (packs != null) {
+      for (PackFile pack : packs) open.put(pack.idxFile.getName(), pack);
+    }
+    
+    List<PackFile> fresh = new ArrayList<>();
+    File[] idxFiles = new File(gitDir, "objects/pack").listFiles(f -> f.getName().endsWith(".idx"));
+    for (File idxFile : idxFiles == null ? new File[0] : idxFiles) {
+      PackFile pack = open.remove(idxFile.getName());
+      if (pack == null && new File(idxFile.getPath().replaceAll("\\.idx$", ".pack")).exists()) {
+        pack = new PackFile(idxFile);
+      }
+      if (pack != null) fresh.add(pack);
+    }
+    for (PackFile gone : open.values()) gone.close();
+    
+    PACKS.put(key, fresh);
+    return fresh;
+  }
+  
+  static synchronized void closePacks(File gitDir) throws IOException {
+    List<PackFile> packs = PACKS.remove(gitDir.getAbsoluteFile());
+    if (packs == null) return;
+    for (PackFile pack : packs) pack.close();
+  }
+  
+  static synchronized void closeAllPacks() {
+    for (List<PackFile> packs : PACKS.values()) {
+      for (PackFile pack : packs) {
+        try {
+          pack.close();
+        } catch (IOException e) {
+          // Nothing is read from it any more
+        }
+      }
+    }
+    PACKS.clear();
+  }
+  
+  // Full object (header and content) from the packs of the repository or its alternates, or null
+  static byte[] loadRawObjectFromPacks(File gitDir, String hash) throws IOException {
+    byte[] sha = hexToBytes(hash);
+    for (boolean rescan : new boolean[] { false, true }) {
+      for (File store : objectStores(gitDir)) {
+        for (PackFile pack : openPacks(store, rescan)) {
+          int pos = pack.find(sha);
+          if (pos >= 0) return pack.loadRaw(pack.offset(pos));
+        }
+      }
+    }
+    return null;
+  }
+  
+  // Pack object class
+  static class PackObject {
+    int type;
+    long size;
+    byte[] data;
+    long deltaOffset;
+    byte[] baseSha;
+    boolean resolved;
+    byte[] sha;
+    long offset;
+    long end;
+    long crc;
+  }
+  
+  // Number of pack objects between persisted clone checkpoints
+  static final int CHECKPOINT_INTERVAL = 1024;
+  
+  // Capacity of each queue between clone pipeline stages, and the end-of-stream marker
+  static final int PIPELINE_QUEUE_SIZE = 256;
+  static final PackObject END_OF_PACK = new PackObject();
+  
+  // Bytes of resolved object content kept around as delta bases
+  static final long DELTA_BASE_CACHE_LIMIT = 96L << 20;
+  
+  // Bytes of spooled pack the scanner holds in memory at once
+  static final int SCANNER_WINDOW_SIZE = 1 << 20;
+  
+  // Bytes of delta bases each opened pack keeps resolved
+  static final long PACK_BASE_CACHE_LIMIT = 32L << 20;
+  
+  // repack defaults: objects each one is tried against, and the longest delta chain
+  static final int REPACK_WINDOW = 10;
+  static final int REPACK_DEPTH = 50;
+  
+  // Objects outside this size range are stored whole: too small to gain, or too big to diff
+  static final long REPACK_MIN_DELTA_SIZE = 32;
+  static final long REPACK_MAX_DELTA_SIZE = 32L << 20;
+  
+  // Deflated deltas kept between delta search and writing; beyond this they are encoded twice
+  static final long REPACK_DELTA_CACHE_LIMIT = 256L << 20;
+  
+  // Object id of a ref that does not exist, in ref update commands
+  static final String ZERO_ID = "0000000000000000000000000000000000000000";
+  
+  // Object id of the tree with no entries
+  static final String EMPTY_TREE_ID = "4b825dc642cb6eb9a060e54bf8d69288fbee4904";
+  
+  // mirror defaults: repositories in flight and connections per host, plus the delta base cache
+  // budget split between the indexing workers
+  static final int MIRROR_JOBS = 64;
+  static final int MIRROR_PER_HOST = 8;
+  static final long MIRROR_CACHE_BUDGET = 512L << 20;
+  
+  // Size of one (sha, crc32, offset) record in the incoming pack's entries file
+  static final int PACK_ENTRY_SIZE = 20 + 4 + 8;
+  
+  // Clone progress persisted next to the spooled pack so an interrupted clone can resume
+  static class CloneCheckpoint {
+    final File file;
+    String want;
+    int total;      // object count from the pack header, 0 until known
+    int objects;    // objects resolved and indexed in the spooled pack
+    long offset;    // spool offset just past the last of those objects
+    
+    CloneCheckpoint(File file) {
+      this.file = file;
+    }
+    
+    static CloneCheckpoint load(File file) throws IOException {
+      Properties props = new Properties();
+      try (FileInputStream fis = new FileInputStream(file)) {
+        props.load(fis);
+      }
+      CloneCheckpoint checkpoint = new CloneCheckpoint(file);
+      checkpoint.want = props.getProperty("want");
+      checkpoint.total = Integer.parseInt(props.getProperty("total", "0"));
+      checkpoint.objects = Integer.parseInt(props.getProperty("objects", "0"));
+      checkpoint.offset = Long.parseLong(props.getProperty("offset", "0"));
+      return checkpoint;
+    }
+    
+    void reset(String want) {
+      this.want = want;
+      this.total = 0;
+      this.objects = 0;
+      this.offset = 0;
+    }
+    
+    boolean isComplete() {
+      return total > 0 && objects == total;
+    }
+    
+    // Write to a temp file and rename so a crash never leaves a torn checkpoint
+    synchronized void save() throws IOException {
+      Properties props = new Properties();
+      props.setProperty("want", want);
+      props.setProperty("total", Integer.toString(total));
+      props.setProperty("objects", Integer.toString(objects));
+      props.setProperty("offset", Long.toString(offset));
+      File tmp = new File(file.getPath() + ".tmp");
+      try (FileOutputStream fos = new FileOutputStream(tmp)) {
+        props.store(fos, null);
+      }
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+  }
+  
+  // Pack sink backed by the spool file; bytes already on disk are compared instead of rewritten.
+  // Readers tail the spool through awaitAvailable() while the download is still running.
+  static class PackSpool extends OutputStream {
+    final RandomAccessFile file;
+    final File spoolFile;
+    final CloneCheckpoint checkpoint;
+    long verifiedLimit;
+    long position;
+    boolean finished;
+    Throwable failure;
+    byte[] existing = new byte[8192];
+    
+    PackSpool(File spoolFile, CloneCheckpoint checkpoint) throws IOException {
+      this.file = new RandomAccessFile(spoolFile, "rw");
+      this.spoolFile = spoolFile;
+      this.checkpoint = checkpoint;
+      this.verifiedLimit = file.length();
+    }
+    
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+    
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (isFinished()) {
+        throw new IOException("Pack spool closed: " + failure);
+      }
+      Stats.BYTES_RECEIVED.add(len);
+      
+      // Skip over the prefix received by an earlier run while it still matches
+      while (len > 0 && position < verifiedLimit) {
+        int n = (int) Math.min(Math.min(len, existing.length), verifiedLimit - position);
+        file.seek(position);
+        file.readFully(existing, 0, n);
+        int mismatch = Arrays.mismatch(existing, 0, n, b, off, off + n);
+        if (mismatch >= 0) {
+          diverge(position + mismatch);
+          break;
+        }
+        advance(n);
+        off += n;
+        len -= n;
+      }
+      
+      if (len > 0) {
+        file.seek(position);
+        file.write(b, off, len);
+        advance(len);
+      }
+    }
+    
+    // The server sent a different pack than last time: keep only the common prefix
+    void diverge(long at) throws IOException {
+      file.setLength(at);
+      verifiedLimit = at;
+      if (checkpoint.offset > at) {
+        checkpoint.reset(checkpoint.want);
+        checkpoint.save();
+        throw new IOException("Remote pack differs from the interrupted download, rerun to restart indexing");
+      }
+    }
+    
+    synchronized void advance(long n) {
+      position += n;
+      notifyAll();
+    }
+    
+    // Mark the download as done (failure == null) or failed, waking any tailing reader
+    synchronized void finish(Throwable failure) {
+      if (!finished) {
+        this.finished = true;
+        this.failure = failure;
+        notifyAll();
+      }
+    }
+    
+    synchronized boolean isFinished() {
+      return finished;
+    }
+    
+    // Block until bytes past the given offset exist or the download ended; returns the readable limit
+    synchronized long awaitAvailable(long offset) throws InterruptedException {
+      while (position <= offset && !finished) {
+        wait();
+      }
+      return position;
+    }
+    
+    @Override
+    public void close() throws IOException {
+      finish(null);
+      file.close();
+    }
+  }
+  
+  // Resolves deltas of one pack's objects, writes their (sha, crc32, offset) index entries and
+  // checkpoints the stored prefix. Resolved objects go on to the sink. The objects themselves stay
+  // in the pack file, which evicted delta bases are read back from; without one they are written
+  // as loose objects.
+  static class ObjectStore implements PackObjectSink, Closeable {
+    final File gitDir;
+    final CloneCheckpoint checkpoint;
+    final PackObjectSink stored;
+    final ObjectTable table;
+    final DeltaBaseCache cache;
+    final PackFile pack;
+    final DataOutputStream entries;
+    // Deltas whose base is not stored yet
+    final List<PackObject> pending = new ArrayList<>();
+    int index;
+    long end;
+    
+    ObjectStore(File entriesFile, File gitDir, CloneCheckpoint checkpoint, long cacheLimit,
+                File packFile, PackObjectSink stored) throws IOException {
+      this.gitDir = gitDir;
+      this.checkpoint = checkpoint;
+      this.stored = stored;
+      this.table = new ObjectTable(Math.max(checkpoint.total, 1024));
+      this.cache = new DeltaBaseCache(cacheLimit);
+      this.pack = packFile == null ? null : new PackFile(packFile, table);
+      this.index = checkpoint.objects;
+      this.end = checkpoint.offset;
+      
+      // Index entries for the pack; the checkpointed prefix has exactly one entry per object
+      try (RandomAccessFile entriesRaf = new RandomAccessFile(entriesFile, "rw")) {
+        entriesRaf.setLength((long) checkpoint.objects * PACK_ENTRY_SIZE);
+      }
+      readPackEntries(entriesFile, table);
+      this.entries = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(entriesFile, true)));
+    }
+    
+    @Override
+    public void put(PackObject obj) throws Exception {
+      resolveObject(obj, table, cache, gitDir, pack);
+      if (obj.resolved) {
+        writePackEntry(entries, obj);
+        stored.put(obj);
+      } else {
+        pending.add(obj);
+      }
+      
+      // Only a prefix with nothing pending is safe to skip on resume
+      index++;
+      end = obj.end;
+      if (pending.isEmpty() && index % CHECKPOINT_INTERVAL == 0) {
+        entries.flush();
+        checkpoint.objects = index;
+        checkpoint.offset = end;
+        checkpoint.save();
+      }
+    }
+    
+    // Resolve deltified objects whose base arrived later in the pack, then checkpoint the end
+    void finish() throws Exception {
+      boolean progress = true;
+      while (!pending.isEmpty() && progress) {
+        progress = false;
+        for (Iterator<PackObject> it = pending.iterator(); it.hasNext(); ) {
+          PackObject obj = it.next();
+          resolveObject(obj, table, cache, gitDir, pack);
+          if (obj.resolved) {
+            writePackEntry(entries, obj);
+            stored.put(obj);
+            it.remove();
+            progress = true;
+          }
+        }
+      }
+      
+      entries.flush();
+      checkpoint.objects = index;
+      checkpoint.offset = end;
+      checkpoint.save();
+    }
+    
+    @Override
+    public void close() throws IOException {
+      entries.close();
+      if (pack != null) pack.close();
+    }
+  }
+  
+  // Cone-mode sparse checkout from .git/info/sparse-checkout. The listed directories are checked
+  // out in full; their ancestors, the root included, get only the files directly inside them.
+  // Decisions are per directory, so an excluded subtree is skipped without reading its tree.
+  static class SparseCheckout {
+    final Set<String> recursive = new TreeSet<>();
+    final Set<String> parents = new TreeSet<>();
+    
+    SparseCheckout(Collection<String> directories) {
+      for (String directory : directories) {
+        String path = directory.replaceAll("^/+|/+$", "");
+        if (!path.isEmpty()) recursive.add(path);
+      }
+      for (String path : recursive) {
+        for (int slash = path.indexOf('/'); slash >= 0; slash = path.indexOf('/', slash + 1)) {
+          parents.add(path.substring(0, slash));
+        }
+      }
+    }
+    
+    // null when sparse checkout is not enabled
+    static SparseCheckout load(File gitDir) throws IOException {
+      File file = new File(gitDir, "info/sparse-checkout");
+      if (!file.isFile()) return null;
+      
+      // Git writes "/dir/" for every directory, plus "!/dir/*/" when only its own files are in
+      Set<String> listed = new LinkedHashSet<>();
+      Set<String> filesOnly = new HashSet<>();
+      for (String line : Files.readAllLines(file.toPath())) {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#") || line.equals("/*") || line.equals("!/*/")) continue;
+        
+        if (line.startsWith("!") && line.endsWith("/*/")) {
+          filesOnly.add(line.substring(1, line.length() - 3).replaceAll("^/+", ""));
+        } else if (!line.startsWith("!") && line.chars().noneMatch(c -> c == '*' || c == '?' || c == '[' || c == '\\')) {
+          listed.add(line.replaceAll("^/+|/+$", ""));
+        } else {
+          throw new RuntimeException("Not a cone-mode sparse-checkout pattern: " + line);
+        }
+      }
+      listed.removeAll(filesOnly);
+      return new SparseCheckout(listed);
+    }
+    
+    void save(File gitDir) throws IOException {
+      StringBuilder patterns = new StringBuilder("/*\n!/*/\n");
+      for (String path : parents) {
+        patterns.append('/').append(path).append("/\n!/").append(path).append("/*/\n");
+      }
+      for (String path : recursive) {
+        patterns.append('/').append(path).append("/\n");
+      }
+      File file = new File(gitDir, "info/sparse-checkout");
+      file.getParentFile().mkdirs();
+      Files.write(file.toPath(), patterns.toString().getBytes());
+      
+      // Without these git ignores the patterns file, or reads it as full patterns
+      File config = new File(gitDir, "config");
+      writeConfigValue(config, "core", "sparseCheckout", "true");
+      writeConfigValue(config, "core", "sparseCheckoutCone", "true");
+    }
+    
+    // Whether a directory (path without trailing slash) is checked out at all
+    boolean includes(String path) {
+      if (parents.contains(path)) return true;
+      while (true) {
+        if (recursive.contains(path)) return true;
+        int slash = path.lastIndexOf('/');
+        if (slash < 0) return false;
+        path = path.substring(0, slash);
+      }
+    }
+  }
+  
+  // Checkout stage: writes trees and blobs as they are resolved instead of after the whole pack.
+  // Objects that went by before they were wanted are read back from the spool by offset.
+  static class PipelinedCheckout implements Closeable {
+    final File workDir;
+    final File gitDir;
+    // id -> pending {path, mode} targets; mode "commit" marks the commit to check out
+    final Map<ByteBuffer, List<String[]>> wanted = new HashMap<>();
+    final ObjectTable arrived;
+    final PackFile spool;
+    final SparseCheckout sparse;
+    
+    // The first resumed entries were stored by an earlier run and are already in the spool
+    PipelinedCheckout(File workDir, File gitDir, File spoolFile, File entriesFile, int resumed) throws IOException {
+      this.workDir = workDir;
+      this.gitDir = gitDir;
+      this.sparse = SparseCheckout.load(gitDir);
+      this.arrived = new ObjectTable(Math.max(resumed, 1024));
+      readPackEntries(entriesFile, arrived, resumed);
+      this.spool = new PackFile(spoolFile, arrived);
+    }
+    
+    void run(String commitSha, BlockingQueue<PackObject> stored) throws Exception {
+      want(hexToBytes(commitSha), "", "commit");
+      
+      while (true) {
+        PackObject obj = stored.take();
+        if (obj == END_OF_PACK) break;
+        
+        arrived.insert(obj.sha, obj.offset, (int) obj.crc, 0);
+        List<String[]> targets = wanted.remove(ByteBuffer.wrap(obj.sha));
+        if (targets != null) {
+          for (String[] target : targets) {
+            write(target[0], target[1], obj.sha, obj.data);
+          }
+        }
+      }
+      
+      // Whatever is still wanted was never sent; an object directory shared with the clone may have it
+      while (!wanted.isEmpty()) {
+        ByteBuffer id = wanted.keySet().iterator().next();
+        List<String[]> targets = wanted.remove(id);
+        byte[] data = loadObjectFromDisk(gitDir, bytesToHex(id.array()));
+        for (String[] target : targets) {
+          write(target[0], target[1], id.array(), data);
+        }
+      }
+    }
+    
+    void want(byte[] id, String path, String mode) throws Exception {
+      // Submodule commits are not part of this repository's pack
+      if (mode.equals("160000")) return;
+      // Nor is anything below a directory outside the sparse cone ever waited for
+      if (sparse != null && mode.equals("40000") && !path.isEmpty() && !sparse.includes(path)) return;
+      
+      int slot = arrived.find(id);
+      if (slot >= 0) {
+        write(path, mode, id, spool.content(arrived.offsets[slot], false));
+      } else {
+        wanted.computeIfAbsent(ByteBuffer.wrap(id), k -> new ArrayList<>()).add(new String[] { path, mode });
+      }
+    }
+    
+    void write(String path, String mode, byte[] id, byte[] data) throws Exception {
+      if (mode.equals("commit")) {
+        if (data == null) {
+          throw new RuntimeException("Commit not found: " + bytesToHex(id));
+        }
+        
+        String tree = Commit.parse(data, 0).tree;
+        if (tree == null) {
+          throw new RuntimeException("No tree found in commit");
+        }
+        want(hexToBytes(tree), "", "40000");
+        return;
+      }
+      
+      File file = new File(workDir, path);
+      
+      if (mode.equals("40000")) {
+        if (data == null) {
+          throw new RuntimeException("Tree not found: " + bytesToHex(id));
+        }
+        file.mkdirs();
+        
+        // Parse tree entries
+        String prefix = path.isEmpty() ? "" : path + "/";
+        TreeIterator entry = new TreeIterator(data);
+        while (entry.next()) {
+          want(entry.sha(), prefix + entry.name(), Integer.toOctalString(entry.mode));
+        }
+      } else if (data == null) {
+        throw new RuntimeException("Blob not found: " + bytesToHex(id));
+      } else {
+        // File
+        Files.write(file.toPath(), data);
+        
+        // Set executable if needed
+        if (mode.equals("100755")) {
+          file.setExecutable(true);
+        }
+      }
+    }
+    
+    @Override
+    public void close() throws IOException {
+      spool.close();
+    }
+  }
+  
+  // Cursor over the spooled pack. Objects are parsed out of a direct ByteBuffer window that is
+  // refilled from the spool (waiting while the download catches up), and inflated from it at
+  // their exact offset. Consumed bytes go through the pack SHA-1 and per-object CRC32 once.
+  static class PackScanner implements Closeable {
+    final PackSpool spool;
+    final FileChannel channel;
+    final ByteBuffer window = ByteBuffer.allocateDirect(SCANNER_WINDOW_SIZE).flip();
+    final Inflater inflater = new Inflater();
+    final byte[] spare = new byte[1];
+    final MessageDigest digest;
+    final CRC32 crc = new CRC32();
+    long windowStart;
+    int hashMark;
+    
+    PackScanner(PackSpool spool) throws IOException {
+      this.spool = spool;
+      this.channel = FileChannel.open(spool.spoolFile.toPath(), StandardOpenOption.READ);
+      try {
+        this.digest = MessageDigest.getInstance("SHA-1");
+      } catch (NoSuchAlgorithmException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    
+    long position() {
+      return windowStart + window.position();
+    }
+    
+    // Make at least n bytes readable from the window, waiting for the spool to grow
+    void require(int n) throws IOException {
+      while (window.remaining() < n) {
+        checksumConsumed();
+        long fileEnd = windowStart + window.limit();
+        windowStart += window.position();
+        window.compact();
+        hashMark = 0;
+        
+        long available;
+        try {
+          available = spool.awaitAvailable(fileEnd);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting for pack data");
+        }
+        if (available <= fileEnd) {
+          window.flip();
+          throw new EOFException("Unexpected end of packfile");
+        }
+        
+        if (available - fileEnd < window.remaining()) {
+          window.limit(window.position() + (int) (available - fileEnd));
+        }
+        channel.read(window, fileEnd);
+        window.flip();
+      }
+    }
+    
+    int readByte() throws IOException {
+      require(1);
+      return window.get() & 0xFF;
+    }
+    
+    byte[] readBytes(int n) throws IOException {
+      require(n);
+      byte[] bytes = new byte[n];
+      window.get(bytes);
+      return bytes;
+    }
+    
+    // Consume bytes the caller does not need; they still go into the pack checksum
+    void skipHashed(long n) throws IOException {
+      while (n > 0) {
+        require(1);
+        int step = (int) Math.min(n, window.remaining());
+        window.position(window.position() + step);
+        n -= step;
+      }
+    }
+    
+    void checksumConsumed() {
+      int end = window.position();
+      if (end > hashMark) {
+        digest.update(window.duplicate().position(hashMark).limit(end));
+        crc.update(window.duplicate().position(hashMark).limit(end));
+        hashMark = end;
+      }
+    }
+    
+    void beginObject() {
+      checksumConsumed();
+      crc.reset();
+    }
+    
+    long objectCrc() {
+      checksumConsumed();
+      return crc.getValue();
+    }
+    
+    byte[] packDigest() {
+      checksumConsumed();
+      return digest.digest();
+    }
+    
+    @Override
+    public void close() throws IOException {
+      inflater.end();
+      channel.close();
+    }
+  }
+  
+  // Open-addressed table of object ids for pack indexing. Each SHA-1 is kept as three words of a
+  // long[] (the low bit of the third marks the slot used), with pack offset, CRC32 and type code
+  // in parallel primitive arrays. A second probe array maps pack offsets back to slots.
+  static class ObjectTable {
+    static final VarHandle LONG_BE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    static final VarHandle INT_BE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    
+    long[] keys;
+    long[] offsets;
+    int[] crcs;
+    byte[] types;
+    byte[] depths;     // delta chain length, capped at 255
+    int[] offsetSlots; // slot + 1, 0 when empty
+    int size;
+    int mask;
+    
+    ObjectTable(int expected) {
+      allocate(Integer.highestOneBit((int) Math.min(1 << 29, Math.max(16, expected * 4L / 3))) << 1);
+    }
+    
+    void allocate(int capacity) {
+      keys = new long[capacity * 3];
+      offsets = new long[capacity];
+      crcs = new int[capacity];
+      types = new byte[capacity];
+      depths = new byte[capacity];
+      offsetSlots = new int[capacity];
+      mask = capacity - 1;
+    }
+    
+    // Probe for the id's slot: either the slot holding it or the empty slot where it belongs
+    int probe(long k0, long k1, long k2) {
+      int slot = (int) (k0 >>> 40) & mask;
+      while (keys[slot * 3 + 2] != 0) {
+        if (keys[slot * 3] == k0 && keys[slot * 3 + 1] == k1 && keys[slot * 3 + 2] == k2) {
+          break;
+        }
+        slot = (slot + 1) & mask;
+      }
+      return slot;
+    }
+    
+    // Add an object (or update it if already present) and return its slot
+    int insert(byte[] sha, long offset, int crc, int type) {
+      if ((size + 1) * 4L > (mask + 1) * 3L) {
+        grow();
+      }
+      
+      long k0 = (long) LONG_BE.get(sha, 0);
+      long k1 = (long) LONG_BE.get(sha, 8);
+      long k2 = ((long) (int) INT_BE.get(sha, 16) << 32) | 1;
+      int slot = probe(k0, k1, k2);
+      if (keys[slot * 3 + 2] == 0) {
+        keys[slot * 3] = k0;
+        keys[slot * 3 + 1] = k1;
+        keys[slot * 3 + 2] = k2;
+        size++;
+      }
+      offsets[slot] = offset;
+      crcs[slot] = crc;
+      types[slot] = (byte) type;
+      indexOffset(slot);
+      return slot;
+    }
+    
+    void indexOffset(int slot) {
+      int probe = Long.hashCode(offsets[slot] * 0x9E3779B97F4A7C15L) & mask;
+      while (offsetSlots[probe] != 0 && offsetSlots[probe] != slot + 1) {
+        probe = (probe + 1) & mask;
+      }
+      offsetSlots[probe] = slot + 1;
+    }
+    
+    void grow() {
+      long[] oldKeys = keys;
+      long[] oldOffsets = offsets;
+      int[] oldCrcs = crcs;
+      byte[] oldTypes = types;
+      byte[] oldDepths = depths;
+      allocate((mask + 1) * 2);
+      
+      for (int old = 0; old < oldOffsets.length; old++) {
+        if (oldKeys[old * 3 + 2] == 0) continue;
+        int slot = probe(oldKeys[old * 3], oldKeys[old * 3 + 1], oldKeys[old * 3 + 2]);
+        System.arraycopy(oldKeys, old * 3, keys, slot * 3, 3);
+        offsets[slot] = oldOffsets[old];
+        crcs[slot] = oldCrcs[old];
+        types[slot] = oldTypes[old];
+        depths[slot] = oldDepths[old];
+        indexOffset(slot);
+      }
+    }
+    
+    // Slot holding the given id, or -1
+    int find(byte[] sha) {
+      long k0 = (long) LONG_BE.get(sha, 0);
+      long k1 = (long) LONG_BE.get(sha, 8);
+      long k2 = ((long) (int) INT_BE.get(sha, 16) << 32) | 1;
+      int slot = probe(k0, k1, k2);
+      return keys[slot * 3 + 2] == 0 ? -1 : slot;
+    }
+    
+    // Slot of the object stored at the given pack offset, or -1
+    int findByOffset(long offset) {
+      int probe = Long.hashCode(offset * 0x9E3779B97F4A7C15L) & mask;
+      while (offsetSlots[probe] != 0) {
+        int slot = offsetSlots[probe] - 1;
+        if (offsets[slot] == offset) return slot;
+        probe = (probe + 1) & mask;
+      }
+      return -1;
+    }
+    
+    byte[] sha(int slot) {
+      byte[] sha = new byte[20];
+      LONG_BE.set(sha, 0, keys[slot * 3]);
+      LONG_BE.set(sha, 8, keys[slot * 3 + 1]);
+      INT_BE.set(sha, 16, (int) (keys[slot * 3 + 2] >>> 32));
+      return sha;
+    }
+    
+    void writeSha(DataOutputStream out, int slot) throws IOException {
+      out.writeLong(keys[slot * 3]);
+      out.writeLong(keys[slot * 3 + 1]);
+      out.writeInt((int) (keys[slot * 3 + 2] >>> 32));
+    }
+    
+    int firstByte(int slot) {
+      return (int) (keys[slot * 3] >>> 56);
+    }
+    
+    // Used slots in ascending SHA-1 order
+    int[] sortedSlots() {
+      int[] slots = new int[size];
+      int n = 0;
+      for (int slot = 0; slot <= mask; slot++) {
+        if (keys[slot * 3 + 2] != 0) slots[n++] = slot;
+      }
+      sortSlots(slots, 0, n - 1);
+      return slots;
+    }
+    
+    int compareSlots(int a, int b) {
+      for (int w = 0; w < 3; w++) {
+        int c = Long.compareUnsigned(keys[a * 3 + w], keys[b * 3 + w]);
+        if (c != 0) return c;
+      }
+      return 0;
+    }
+    
+    void sortSlots(int[] slots, int lo, int hi) {
+      while (lo < hi) {
+        int pivot = slots[(lo + hi) >>> 1];
+        int i = lo;
+        int j = hi;
+        while (i <= j) {
+          while (compareSlots(slots[i], pivot) < 0) i++;
+          while (compareSlots(slots[j], pivot) > 0) j--;
+          if (i <= j) {
+            int t = slots[i];
+            slots[i++] = slots[j];
+            slots[j--] = t;
+          }
+        }
+        // Recurse into the smaller half to bound stack depth
+        if (j - lo < hi - i) {
+          sortSlots(slots, lo, j);
+          lo = i;
+        } else {
+          sortSlots(slots, i, hi);
+          hi = j;
+        }
+      }
+    }
+  }
+  
+  // LRU of resolved object contents keyed by pack offset (slots move when the table grows),
+  // bounded by total bytes. Entries live in parallel arrays, chained per hash bucket and linked
+  // from least to most recently used, so lookups neither box the offset nor allocate.
+  static class DeltaBaseCache {
+    final long limit;
+    int[] buckets;  // first entry of each chain, -1 when empty
+    long[] offsets;
+    byte[][] values;
+    int[] chain;    // next entry in the bucket, or in the free list
+    int[] older;
+    int[] newer;
+    int mask;
+    int used;       // entries handed out so far, live or free
+    int free = -1;
+    int oldest = -1;
+    int newest = -1;
+    long bytes;
+    
+    DeltaBaseCache(long limit) {
+      this.limit = limit;
+      allocate(64);
+    }
+    
+    void allocate(int capacity) {
+      buckets = new int[capacity];
+      Arrays.fill(buckets, -1);
+      offsets = Arrays.copyOf(offsets == null ? new long[0] : offsets, capacity);
+      values = Arrays.copyOf(values == null ? new byte[0][] : values, capacity);
+      chain = Arrays.copyOf(chain == null ? new int[0] : chain, capacity);
+      older = Arrays.copyOf(older == null ? new int[0] : older, capacity);
+      newer = Arrays.copyOf(newer == null ? new int[0] : newer, capacity);
+      mask = capacity - 1;
+      
+      // Only called with no free entries, so every entry handed out is live
+      for (int e = 0; e < used; e++) {
+        int bucket = bucket(offsets[e]);
+        chain[e] = buckets[bucket];
+        buckets[bucket] = e;
+      }
+    }
+    
+    int bucket(long offset) {
+      return Long.hashCode(offset * 0x9E3779B97F4A7C15L) & mask;
+    }
+    
+    int find(long offset) {
+      int e = buckets[bucket(offset)];
+      while (e >= 0 && offsets[e] != offset) {
+        e = chain[e];
+      }
+      return e;
+    }
+    
+    byte[] get(long offset) {
+      int e = find(offset);
+      if (e < 0) {
+        Stats.CACHE_MISSES.increment();
+        return null;
+      }
+      Stats.CACHE_HITS.increment();
+      unlink(e);
+      link(e);
+      return values[e];
+    }
+    
+    void put(long offset, byte[] data) {
+      // Objects too big to be worth caching are re-read from disk when needed
+      if (data.length > limit / 4) return;
+      
+      int e = find(offset);
+      if (e >= 0) {
+        bytes += data.length - values[e].length;
+        unlink(e);
+      } else {
+        if (free >= 0) {
+          e = free;
+          free = chain[e];
+        } else {
+          if (used == offsets.length) allocate(offsets.length * 2);
+          e = used++;
+        }
+        int bucket = bucket(offset);
+        offsets[e] = offset;
+        chain[e] = buckets[bucket];
+        buckets[bucket] = e;
+        bytes += data.length;
+      }
+      values[e] = data;
+      link(e);
+      
+      while (bytes > limit) {
+        remove(oldest);
+      }
+    }
+    
+    void remove(int e) {
+      int bucket = bucket(offsets[e]);
+      if (buckets[bucket] == e) {
+        buckets[bucket] = chain[e];
+      } else {
+        int prev = buckets[bucket];
+        while (chain[prev] != e) prev = chain[prev];
+        chain[prev] = chain[e];
+      }
+      unlink(e);
+      bytes -= values[e].length;
+      values[e] = null;
+      chain[e] = free;
+      free = e;
+    }
+    
+    // Make an entry the most recently used
+    void link(int e) {
+      older[e] = newest;
+      newer[e] = -1;
+      if (newest >= 0) newer[newest] = e;
+      else oldest = e;
+      newest = e;
+    }
+    
+    void unlink(int e) {
+      if (older[e] >= 0) newer[older[e]] = newer[e];
+      else oldest = newer[e];
+      if (newer[e] >= 0) older[newer[e]] = older[e];
+      else newest = older[e];
+    }
+  }
+  
+  // A pack with its version 2 index, for reading objects that are no longer loose. The index is
+  // memory-mapped; object data is read with positional channel reads, which are safe to share
+  // between threads.
+  static class PackFile implements Closeable {
+    static final int IDX_HEADER = 8 + 256 * 4;
+    
+    final File packFile;
+    final File idxFile;
+    final ByteBuffer idx;
+    final FileChannel channel;
+    final int count;
+    final ObjectTable table;
+    final DeltaBaseCache cache = new DeltaBaseCache(PACK_BASE_CACHE_LIMIT);
+    
+    PackFile(File idxFile) throws IOException {
+      this.idxFile = idxFile;
+      this.table = null;
+      try (FileChannel idxChannel = FileChannel.open(idxFile.toPath(), StandardOpenOption.READ)) {
+        idx = idxChannel.map(FileChannel.MapMode.READ_ONLY, 0, idxChannel.size());
+      }
+      if (idx.getInt(0) != 0xff744f63 || idx.getInt(4) != 2) {
+        throw new IOException("Unsupported pack index: " + idxFile);
+      }
+      count = idx.getInt(8 + 255 * 4);
+      
+      String name = idxFile.getName();
+      packFile = new File(idxFile.getParentFile(), name.substring(0, name.length() - 4) + ".pack");
+      channel = FileChannel.open(packFile.toPath(), StandardOpenOption.READ);
+    }
+    
+    // A pack still being indexed, read by offset only; REF_DELTA bases are found in the table
+    // of objects indexed so far
+    PackFile(File packFile, ObjectTable table) throws IOException {
+      this.packFile = packFile;
+      this.idxFile = null;
+      this.idx = null;
+      this.count = 0;
+      this.table = table;
+      this.channel = FileChannel.open(packFile.toPath(), StandardOpenOption.READ);
+    }
+    
+    // Index position of an object id, or -1; binary search within its fanout bucket
+    int find(byte[] sha) {
+      int first = sha[0] & 0xFF;
+      int lo = first == 0 ? 0 : idx.getInt(8 + (first - 1) * 4);
+      int hi = idx.getInt(8 + first * 4) - 1;
+      long key0 = (long) ObjectTable.LONG_BE.get(sha, 0);
+      long key1 = (long) ObjectTable.LONG_BE.get(sha, 8);
+      int key2 = (int) ObjectTable.INT_BE.get(sha, 16);
+      
+      while (lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        int at = IDX_HEADER + mid * 20;
+        int cmp = Long.compareUnsigned(idx.getLong(at), key0);
+        if (cmp == 0) cmp = Long.compareUnsigned(idx.getLong(at + 8), key1);
+        if (cmp == 0) cmp = Integer.compareUnsigned(idx.getInt(at + 16), key2);
+        if (cmp == 0) return mid;
+        if (cmp < 0) {
+          lo = mid + 1;
+        } else {
+          hi = mid - 1;
+        }
+      }
+      return -1;
+    }
+    
+    byte[] sha(int pos) {
+      byte[] sha = new byte[20];
+      idx.get(IDX_HEADER + pos * 20, sha);
+      return sha;
+    }
+    
+    long offset(int pos) {
+      int value = idx.getInt(IDX_HEADER + count * 24 + pos * 4);
+      if (value >= 0) return value;
+      return idx.getLong(IDX_HEADER + count * 28 + (value & 0x7FFFFFFF) * 8);
+    }
+    
+    // Entry header at a pack offset: {type, size, data start, base offset (OFS_DELTA) or -1}
+    long[] header(long offset, byte[] baseSha) throws IOException {
+      ByteBuffer buf = ByteBuffer.allocate(64);
+      while (buf.hasRemaining() && channel.read(buf, offset + buf.position()) > 0) { }
+      buf.flip();
+      
+      int b = buf.get() & 0xFF;
+      int type = (b >> 4) & 7;
+      long size = b & 15;
+      for (int shift = 4; (b & 0x80) != 0; shift += 7) {
+        b = buf.get() & 0xFF;
+        size |= (long) (b & 0x7F) << shift;
+      }
+      
+      long baseOffset = -1;
+      if (type == 6) {
+        b = buf.get() & 0xFF;
+        long distance = b & 0x7F;
+        while ((b & 0x80) != 0) {
+          b = buf.get() & 0xFF;
+          distance = ((distance + 1) << 7) | (b & 0x7F);
+        }
+        baseOffset = offset - distance;
+      } else if (type == 7) {
+        buf.get(baseSha);
+      }
+      return new long[] { type, size, offset + buf.position(), baseOffset };
+    }
+    
+    // Offset of a delta's base, following REF_DELTA through this pack's index
+    long baseOffset(long[] header, byte[] baseSha) {
+      if (header[0] == 6) return header[3];
+      if (table != null) {
+        int slot = table.find(baseSha);
+        if (slot >= 0) return table.offsets[slot];
+      }
+      int pos = idx == null ? -1 : find(baseSha);
+      if (pos < 0) {
+        throw new RuntimeException("Corrupt packfile: delta base " + bytesToHex(baseSha) + " missing from " + packFile.getName());
+      }
+      return offset(pos);
+    }
+    
+    // Object type code of the entry at an offset; a delta has its chain's base type
+    int type(long offset) throws IOException {
+      byte[] baseSha = new byte[20];
+      long[] header = header(offset, baseSha);
+      while (header[0] == 6 || header[0] == 7) {
+        header = header(baseOffset(header, baseSha), baseSha);
+      }
+      return (int) header[0];
+    }
+    
+    // Size of the object at an offset; for a delta, the result size from the start of its data
+    long size(long offset) throws IOException {
+      long[] header = header(offset, new byte[20]);
+      if (header[0] != 6 && header[0] != 7) return header[1];
+      
+      ByteArrayInputStream delta = new ByteArrayInputStream(inflate(header[2], Math.min(header[1], 20), false));
+      readVariableLength(delta);
+      return readVariableLength(delta);
+    }
+    
+    // Full object (header and content) at a pack offset
+    byte[] loadRaw(long offset) throws IOException {
+      byte[] content = content(offset, false);
+      byte[] header = (typeName(type(offset)) + " " + content.length + "\0").getBytes(StandardCharsets.US_ASCII);
+      byte[] raw = Arrays.copyOf(header, header.length + content.length);
+      System.arraycopy(content, 0, raw, header.length, content.length);
+      return raw;
+    }
+    
+    // Object content at an offset with deltas applied; bases are kept in the cache
+    byte[] content(long offset, boolean isBase) throws IOException {
+      synchronized (cache) {
+        byte[] cached = cache.get(offset);
+        if (cached != null) return cached;
+      }
+      
+      byte[] baseSha = new byte[20];
+      long[] header = header(offset, baseSha);
+      byte[] data = inflate(header[2], header[1], true);
+      if (header[0] == 6 || header[0] == 7) {
+        data = applyDelta(content(baseOffset(header, baseSha), true), data);
+      }
+      
+      if (isBase) {
+        synchronized (cache) {
+          cache.put(offset, data);
+        }
+      }
+      return data;
+    }
+    
+    // Inflate size bytes of entry data starting at a pack offset; a partial read stops early
+    byte[] inflate(long position, long size, boolean exact) throws IOException {
+      byte[] out = new byte[(int) size];
+      Inflater inflater = new Inflater();
+      ByteBuffer in = ByteBuffer.allocate(8192);
+      try {
+        int produced = 0;
+        while (produced < out.length && !inflater.finished()) {
+          if (inflater.needsInput()) {
+            in.clear();
+            int read = channel.read(in, position);
+            if (read <= 0) {
+              throw new EOFException("Corrupt packfile: truncated entry in " + packFile.getName());
+            }
+            position += read;
+            in.flip();
+            inflater.setInput(in);
+          }
+          produced += inflater.inflate(out, produced, out.length - produced);
+          if (inflater.needsDictionary()) {
+            throw new RuntimeException("Corrupt packfile: entry needs a preset dictionary");
+          }
+        }
+        if (exact && produced != out.length) {
+          throw new RuntimeException("Corrupt packfile: object is " + produced + " bytes, header says " + size);
+        }
+        Stats.INFLATE_IN.add(inflater.getBytesRead());
+        Stats.INFLATE_OUT.add(produced);
+        return out;
+      } catch (DataFormatException e) {
+        throw new RuntimeException("Corrupt packfile: " + e.getMessage(), e);
+      } finally {
+        inflater.end();
+      }
+    }
+    
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+  
+  // Delta encoder for one base object. Every 16-byte block at a block boundary of the base is
+  // hashed into chained buckets; encode() rolls the same hash over the target, emitting copy
+  // instructions for verified matches and literal inserts for the bytes in between.
+  static class DeltaIndex {
+    static final int BLOCK = 16;
+    static final int MAX_CHAIN = 64;     // bound the work on highly repetitive bases
+    static final int PRIME = 0x01000193;
+    static final int PRIME_POW;          // PRIME^(BLOCK - 1), to roll the oldest byte out
+    static {
+      int pow = 1;
+      for (int i = 1; i < BLOCK; i++) pow *= PRIME;
+      PRIME_POW = pow;
+    }
+    
+    final byte[] base;
+    final int[] heads;  // bucket -> block number + 1, 0 when empty
+    final int[] next;   // block number + 1 -> next block in the same bucket
+    final int mask;
+    
+    DeltaIndex(byte[] base) {
+      this.base = base;
+      int blocks = base.length / BLOCK;
+      mask = (Integer.highestOneBit(Math.max(16, blocks)) << 1) - 1;
+      heads = new int[mask + 1];
+      next = new int[blocks + 1];
+      
+      // Insert from the end so each chain lists earlier blocks first
+      int[] chainLength = new int[mask + 1];
+      for (int block = blocks - 1; block >= 0; block--) {
+        int bucket = bucket(hash(base, block * BLOCK));
+        if (chainLength[bucket]++ >= MAX_CHAIN) continue;
+        next[block + 1] = heads[bucket];
+        heads[bucket] = block + 1;
+      }
+    }
+    
+    static int hash(byte[] data, int offset) {
+      int h = 0;
+      for (int i = 0; i < BLOCK; i++) h = h * PRIME + (data[offset + i] & 0xFF);
+      return h;
+    }
+    
+    int bucket(int hash) {
+      return (hash ^ (hash >>> 15)) & mask;
+    }
+    
+    // Delta turning the base into target, or null if it would exceed maxSize bytes
+    byte[] encode(byte[] target, long maxSize) {
+      byte[] out = new byte[(int) Math.min(maxSize, Integer.MAX_VALUE - 64) + 64];
+      int n = writeSize(out, 0, base.length);
+      n = writeSize(out, n, target.length);
+      
+      int insertStart = 0;
+      int pos = 0;
+      int h = target.length >= BLOCK ? hash(target, 0) : 0;
+      while (pos + BLOCK <= target.length) {
+        int matchOffset = 0;
+        int matchLength = 0;
+        for (int block = heads[bucket(h)]; block != 0; block = next[block]) {
+          int candidate = (block - 1) * BLOCK;
+          int limit = Math.min(base.length - candidate, target.length - pos);
+          int length = Arrays.mismatch(base, candidate, candidate + limit, target, pos, pos + limit);
+          if (length < 0) length = limit;
+          if (length > matchLength) {
+            matchOffset = candidate;
+            matchLength = length;
+          }
+        }
+        
+        // Anything shorter than a block is a hash collision or not worth a copy
+        if (matchLength < BLOCK) {
+          if (pos + BLOCK < target.length) {
+            h = (h - (target[pos] & 0xFF) * PRIME_POW) * PRIME + (target[pos + BLOCK] & 0xFF);
+          }
+          pos++;
+          continue;
+        }
+        
+        // Grow the match backwards over bytes waiting to be inserted
+        while (matchOffset > 0 && pos > insertStart && base[matchOffset - 1] == target[pos - 1]) {
+          matchOffset--;
+          pos--;
+          matchLength++;
+        }
+        
+        n = writeInsert(out, n, target, insertStart, pos);
+        n = n < 0 ? n : writeCopy(out, n, matchOffset, matchLength);
+        if (n < 0 || n > maxSize) return null;
+        
+        pos += matchLength;
+        insertStart = pos;
+        if (pos + BLOCK <= target.length) h = hash(target, pos);
+      }
+      
+      n = writeInsert(out, n, target, insertStart, target.length);
+      if (n < 0 || n > maxSize) return null;
+      return Arrays.copyOf(out, n);
+    }
+    
+    static int writeSize(byte[] out, int n, long size) {
+      while (size >= 0x80) {
+        out[n++] = (byte) (size | 0x80);
+        size >>>= 7;
+      }
+      out[n++] = (byte) size;
+      return n;
+    }
+    
+    // Literal bytes in runs of at most 127; -1 when out is full
+    static int writeInsert(byte[] out, int n, byte[] data, int from, int to) {
+      while (from < to) {
+        int length = Math.min(127, to - from);
+        if (n + 1 + length > out.length) return -1;
+        out[n++] = (byte) length;
+        System.arraycopy(data, from, out, n, length);
+        n += length;
+        from += length;
+      }
+      return n;
+    }
+    
+    // Copies from the base in runs of at most 64 KiB; -1 when out is full
+    static int writeCopy(byte[] out, int n, int offset, int length) {
+      while (length > 0) {
+        int size = Math.min(0x10000, length);
+        if (n + 8 > out.length) return -1;
+        int op = n++;
+        int cmd = 0x80;
+        for (int i = 0; i < 4; i++) {
+          int b = (offset >>> (i * 8)) & 0xFF;
+          if (b != 0) {
+            cmd |= 1 << i;
+            out[n++] = (byte) b;
+          }
+        }
+        // A size of exactly 64 KiB is encoded as no size bytes
+        for (int i = 0; i < 3 && size != 0x10000; i++) {
+          int b = (size >>> (i * 8)) & 0xFF;
+          if (b != 0) {
+            cmd |= 0x10 << i;
+            out[n++] = (byte) b;
+          }
+        }
+        out[op] = (byte) cmd;
+        offset += size;
+        length -= size;
+      }
+      return n;
+    }
+  }
+  
+  // One object being packed by repack: its sort keys and the delta chosen for it
+  static class RepackEntry {
+    final String hash;
+    int type;
+    long size;
+    int nameHash;
+    RepackEntry base;
+    byte[] delta;       // deflated delta against base
+    long deltaSize;
+    int depth;
+    long offset;        // in the new pack
+    boolean preferredBase; // already on the receiving side: a delta base that is never written
+    
+    RepackEntry(String hash) {
+      this.hash = hash;
+    }
+  }
+  
+  // Cursor over the entries of a tree object's content, parsed in place: the mode, the name as a
+  // byte range and the offset of the 20-byte id, with nothing allocated per entry. The one
+  // place tree objects are parsed; name() and id() allocate only when a caller asks for them.
+  static class TreeIterator {
+    static final byte[] TREE = "tree".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] BLOB = "blob".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] COMMIT = "commit".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    
+    final byte[] data;
+    final byte[] scratch = new byte[40];
+    int next;
+    int mode;
+    int nameStart;
+    int nameEnd;
+    int idOffset;
+    
+    TreeIterator(byte[] data) {
+      this.data = data;
+    }
+    
+    // Move to the next entry; false once the tree is exhausted
+    boolean next() {
+      if (next >= data.length) return false;
+      
+      int pos = next;
+      int m = 0;
+      while (data[pos] != ' ') {
+        m = (m << 3) + (data[pos++] - '0');
+      }
+      mode = m;
+      nameStart = pos + 1;
+      nameEnd = indexOf(data, (byte) 0, nameStart);
+      if (nameEnd < 0 || nameEnd + 21 > data.length) {
+        throw new RuntimeException("Malformed tree entry at offset " + next);
+      }
+      idOffset = nameEnd + 1;
+      next = idOffset + 20;
+      return true;
+    }
+    
+    boolean isTree() {
+      return (mode & 0170000) == 0040000;
+    }
+    
+    String name() {
+      return new String(data, nameStart, nameEnd - nameStart, StandardCharsets.UTF_8);
+    }
+    
+    String id() {
+      return bytesToHex(data, idOffset, 20);
+    }
+    
+    byte[] sha() {
+      return Arrays.copyOfRange(data, idOffset, idOffset + 20);
+    }
+    
+    // The mode as git prints it, six octal digits
+    void writeMode(OutputStream out) throws IOException {
+      for (int i = 5, m = mode; i >= 0; i--, m >>>= 3) {
+        scratch[i] = (byte) ('0' + (m & 7));
+      }
+      out.write(scratch, 0, 6);
+    }
+    
+    void writeName(OutputStream out) throws IOException {
+      out.write(data, nameStart, nameEnd - nameStart);
+    }
+    
+    void writeId(OutputStream out) throws IOException {
+      for (int i = 0; i < 20; i++) {
+        int b = data[idOffset + i] & 0xff;
+        scratch[2 * i] = HEX_DIGITS[b >>> 4];
+        scratch[2 * i + 1] = HEX_DIGITS[b & 15];
+      }
+      out.write(scratch, 0, 40);
+    }
+    
+    boolean sameId(TreeIterator other) {
+      return Arrays.equals(data, idOffset, idOffset + 20, other.data, other.idOffset, other.idOffset + 20);
+    }
+    
+    int compareTo(TreeIterator other) {
+      return compareNames(data, nameStart, nameEnd, isTree(), other.data, other.nameStart, other.nameEnd, other.isTree());
+    }
+    
+    // Git's tree order: names compare as unsigned bytes, with a tree's name compared as if it
+    // ended in '/'. A file and a tree of the same name are therefore different entries.
+    static int compareNames(byte[] a, int aStart, int aEnd, boolean aTree, byte[] b, int bStart, int bEnd, boolean bTree) {
+      int common = Math.min(aEnd - aStart, bEnd - bStart);
+      int cmp = Arrays.compareUnsigned(a, aStart, aStart + common, b, bStart, bStart + common);
+      if (cmp != 0) return cmp;
+      
+      int c = aEnd - aStart > common ? a[aStart + common] & 0xff : aTree ? '/' : 0;
+      int otherC = bEnd - bStart > common ? b[bStart + common] & 0xff : bTree ? '/' : 0;
+      return c - otherC;
+    }
+  }
+  
+  // Header fields of a commit object, scanned straight from its bytes
+  static class Commit {
+    String tree;
+    List<String> parents = new ArrayList<>();
+    String author;      // "Name <email> <seconds> <zone>"
+    long time;          // committer timestamp in seconds
+    int messageStart;
+    int[] parentIds;    // filled in lazily by CommitIndex
+    
+    static Commit parse(byte[] data, int pos) {
+      Commit commit = new Commit();
+      while (pos < data.length && data[pos] != '\n') {
+        int end = indexOf(data, (byte) '\n', pos);
+        if (end < 0) end = data.length;
+        
+        if (startsWith(data, pos, "tree ")) {
+          commit.tree = new String(data, pos + 5, 40, StandardCharsets.US_ASCII);
+        } else if (startsWith(data, pos, "parent ")) {
+          commit.parents.add(new String(data, pos + 7, 40, StandardCharsets.US_ASCII));
+        } else if (startsWith(data, pos, "author ")) {
+          commit.author = new String(data, pos + 7, end - pos - 7, StandardCharsets.UTF_8);
+        } else if (startsWith(data, pos, "committer ")) {
+          // Timestamp is the token after the closing '>' of the email
+          int i = end - 1;
+          while (i > pos && data[i] != '>') i--;
+          for (i += 2; i < end && data[i] >= '0' && data[i] <= '9'; i++) {
+            commit.time = commit.time * 10 + (data[i] - '0');
+          }
+        }
+        pos = end + 1;
+      }
+      
+      if (commit.tree == null) {
+        throw new RuntimeException("No tree found in commit");
+      }
+      commit.messageStart = Math.min(pos + 1, data.length);
+      return commit;
+    }
+  }
+  
+  // Reader and writer for .git/objects/info/commit-graph, in git's version 1 format: commit ids
+  // sorted behind a fanout table, then one fixed-width row per commit holding the tree id, the
+  // graph positions of its parents, its generation number and its commit date. History walks
+  // read rows by position instead of inflating commit objects.
+  static class CommitGraph {
+    static final int SIGNATURE = 0x43475048;          // "CGPH"
+    static final int CHUNK_OID_FANOUT = 0x4f494446;   // "OIDF"
+    static final int CHUNK_OID_LOOKUP = 0x4f49444c;   // "OIDL"
+    static final int CHUNK_COMMIT_DATA = 0x43444154;  // "CDAT"
+    static final int CHUNK_EXTRA_EDGES = 0x45444745;  // "EDGE"
+    static final int PARENT_NONE = 0x70000000;
+    static final int OCTOPUS_EDGES = 0x80000000;      // parent2 is an index into EDGE
+    static final int LAST_EDGE = 0x80000000;
+    static final int ROW_SIZE = 20 + 4 + 4 + 8;
+    
+    final ByteBuffer buffer;
+    final int size;
+    int fanoutOffset = -1;
+    int oidOffset = -1;
+    int dataOffset = -1;
+    int edgeOffset = -1;
+    
+    CommitGraph(ByteBuffer buffer) {
+      this.buffer = buffer;
+      if (buffer.getInt(0) != SIGNATURE || buffer.get(4) != 1 || buffer.get(5) != 1) {
+        throw new RuntimeException("Unsupported commit-graph file");
+      }
+      
+      int chunks = buffer.get(6) & 0xFF;
+      for (int i = 0; i < chunks; i++) {
+        int id = buffer.getInt(8 + i * 12);
+        int offset = (int) buffer.getLong(8 + i * 12 + 4);
+        switch (id) {
+          case CHUNK_OID_FANOUT -> fanoutOffset = offset;
+          case CHUNK_OID_LOOKUP -> oidOffset = offset;
+          case CHUNK_COMMIT_DATA -> dataOffset = offset;
+          case CHUNK_EXTRA_EDGES -> edgeOffset = offset;
+          default -> { }
+        }
+      }
+      if (fanoutOffset < 0 || oidOffset < 0 || dataOffset < 0) {
+        throw new RuntimeException("Corrupt commit-graph: missing required chunk");
+      }
+      size = buffer.getInt(fanoutOffset + 255 * 4);
+    }
+    
+    // Map the repository's commit-graph, or null when it has none
+    static CommitGraph open(File gitDir) throws IOException {
+      File file = new File(gitDir, "objects/info/commit-graph");
+      if (!file.isFile()) return null;
+      
+      try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+        return new CommitGraph(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+      }
+    }
+    
+    // Graph position of a commit id, or -1; binary search within its fanout bucket
+    int find(byte[] sha) {
+      int first = sha[0] & 0xFF;
+      int lo = first == 0 ? 0 : buffer.getInt(fanoutOffset + (first - 1) * 4);
+      int hi = buffer.getInt(fanoutOffset + first * 4) - 1;
+      long key0 = (long) ObjectTable.LONG_BE.get(sha, 0);
+      long key1 = (long) ObjectTable.LONG_BE.get(sha, 8);
+      int key2 = (int) ObjectTable.INT_BE.get(sha, 16);
+      
+      while (lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        int at = oidOffset + mid * 20;
+        int cmp = Long.compareUnsigned(buffer.getLong(at), key0);
+        if (cmp == 0) cmp = Long.compareUnsigned(buffer.getLong(at + 8), key1);
+        if (cmp == 0) cmp = Integer.compareUnsigned(buffer.getInt(at + 16), key2);
+        if (cmp == 0) return mid;
+        if (cmp < 0) {
+          lo = mid + 1;
+        } else {
+          hi = mid - 1;
+        }
+      }
+      return -1;
+    }
+    
+    String hash(int pos) {
+      byte[] sha = new byte[20];
+      buffer.get(oidOffset + pos * 20, sha);
+      return bytesToHex(sha);
+    }
+    
+    String tree(int pos) {
+      byte[] sha = new byte[20];
+      buffer.get(dataOffset + pos * ROW_SIZE, sha);
+      return bytesToHex(sha);
+    }
+    
+    int[] parents(int pos) {
+      int row = dataOffset + pos * ROW_SIZE;
+      int parent1 = buffer.getInt(row + 20);
+      int parent2 = buffer.getInt(row + 24);
+      if (parent1 == PARENT_NONE) return new int[0];
+      if (parent2 == PARENT_NONE) return new int[] { parent1 };
+      if ((parent2 & OCTOPUS_EDGES) == 0) return new int[] { parent1, parent2 };
+      
+      // Octopus merge: the rest of the parents are listed in the EDGE chunk
+      int[] parents = new int[8];
+      parents[0] = parent1;
+      int count = 1;
+      for (int edge = edgeOffset + (parent2 & ~OCTOPUS_EDGES) * 4; ; edge += 4) {
+        int value = buffer.getInt(edge);
+        if (count == parents.length) parents = Arrays.copyOf(parents, count * 2);
+        parents[count++] = value & ~LAST_EDGE;
+        if ((value & LAST_EDGE) != 0) break;
+      }
+      return Arrays.copyOf(parents, count);
+    }
+    
+    // Topological level: 1 for root commits, one more than the highest parent otherwise
+    int generation(int pos) {
+      return buffer.getInt(dataOffset + pos * ROW_SIZE + 28) >>> 2;
+    }
+    
+    long time(int pos) {
+      int row = dataOffset + pos * ROW_SIZE;
+      return ((buffer.getInt(row + 28) & 3L) << 32) | (buffer.getInt(row + 32) & 0xFFFFFFFFL);
+    }
+    
+    // Write a commit-graph of every commit reachable from the refs; returns the commit count
+    static int write(File gitDir) throws IOException, NoSuchAlgorithmException {
+      // Collect commits with an explicit stack, histories can be far deeper than the call stack
+      Map<String, Commit> commits = new HashMap<>();
+      List<String> pending = new ArrayList<>();
+      for (String tip : listRefTips(gitDir)) {
+        String commit = peelToCommit(gitDir, tip);
+        if (commit != null) pending.add(commit);
+      }
+      while (!pending.isEmpty()) {
+        String hash = pending.remove(pending.size() - 1);
+        if (commits.containsKey(hash)) continue;
+        
+        byte[] content = loadObjectFromDisk(gitDir, hash);
+        if (content == null) {
+          throw new RuntimeException("Commit not found: " + hash);
+        }
+        Commit commit = Commit.parse(content, 0);
+        commits.put(hash, commit);
+        pending.addAll(commit.parents);
+      }
+      
+      // Positions follow sorted id order
+      String[] order = commits.keySet().toArray(new String[0]);
+      Arrays.sort(order);
+      Map<String, Integer> positions = new HashMap<>();
+      for (int i = 0; i < order.length; i++) positions.put(order[i], i);
+      
+      int[][] parents = new int[order.length][];
+      for (int i = 0; i < order.length; i++) {
+        List<String> parentHashes = commits.get(order[i]).parents;
+        parents[i] = new int[parentHashes.size()];
+        for (int p = 0; p < parents[i].length; p++) parents[i][p] = positions.get(parentHashes.get(p));
+      }
+      
+      // Generation numbers, parents first, again without recursion
+      int[] generations = new int[order.length];
+      int[] stack = new int[16];
+      for (int start = 0; start < order.length; start++) {
+        if (generations[start] != 0) continue;
+        int depth = 0;
+        stack[depth++] = start;
+        while (depth > 0) {
+          int pos = stack[depth - 1];
+          int generation = 1;
+          boolean ready = true;
+          for (int parent : parents[pos]) {
+            if (generations[parent] == 0) {
+              if (depth == stack.length) stack = Arrays.copyOf(stack, depth * 2);
+              stack[depth++] = parent;
+              ready = false;
+            } else {
+              generation = Math.max(generation, generations[parent] + 1);
+            }
+          }
+          if (ready) {
+            generations[pos] = Math.min(generation, 0x3FFFFFFF);
+            depth--;
+          }
+        }
+      }
+      
+      int edgeCount = 0;
+      for (int[] p : parents) {
+        if (p.length > 2) edgeCount += p.length - 1;
+      }
+      
+      File infoDir = new File(gitDir, "objects/info");
+      infoDir.mkdirs();
+      File file = new File(infoDir, "commit-graph");
+      File tmp = new File(infoDir, "commit-graph.tmp");
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+             new DigestOutputStream(new FileOutputStream(tmp), digest)))) {
+        int chunks = edgeCount > 0 ? 4 : 3;
+        out.writeInt(SIGNATURE);
+        out.writeByte(1);         // version
+        out.writeByte(1);         // SHA-1
+        out.writeByte(chunks);
+        out.writeByte(0);         // no base graphs
+        
+        // Chunk table of contents, terminated by a zero id carrying the end offset
+        long offset = 8 + (chunks + 1) * 12L;
+        int[] ids = { CHUNK_OID_FANOUT, CHUNK_OID_LOOKUP, CHUNK_COMMIT_DATA, CHUNK_EXTRA_EDGES };
+        long[] sizes = { 256 * 4, order.length * 20L, (long) order.length * ROW_SIZE, edgeCount * 4L };
+        for (int i = 0; i < chunks; i++) {
+          out.writeInt(ids[i]);
+          out.writeLong(offset);
+          offset += sizes[i];
+        }
+        out.writeInt(0);
+        out.writeLong(offset);
+        
+        int[] fanout = new int[256];
+        for (String hash : order) fanout[Character.digit(hash.charAt(0), 16) << 4 | Character.digit(hash.charAt(1), 16)]++;
+        int total = 0;
+        for (int i = 0; i < 256; i++) {
+          total += fanout[i];
+          out.writeInt(total);
+        }
+        
+        for (String hash : order) out.write(hexToBytes(hash));
+        
+        int edge = 0;
+        for (int i = 0; i < order.length; i++) {
+          Commit commit = commits.get(order[i]);
+          out.write(hexToBytes(commit.tree));
+          int[] p = parents[i];
+          out.writeInt(p.length > 0 ? p[0] : PARENT_NONE);
+          if (p.length > 2) {
+            out.writeInt(OCTOPUS_EDGES | edge);
+            edge += p.length - 1;
+          } else {
+            out.writeInt(p.length > 1 ? p[1] : PARENT_NONE);
+          }
+          out.writeInt(generations[i] << 2 | (int) ((commit.time >>> 32) & 3));
+          out.writeInt((int) commit.time);
+        }
+        
+        for (int[] p : parents) {
+          if (p.length <= 2) continue;
+          for (int j = 1; j < p.length; j++) {
+            out.writeInt(j == p.length - 1 ? p[j] | LAST_EDGE : p[j]);
+          }
+        }
+        
+        out.flush();
+        out.write(digest.digest());
+      }
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      return order.length;
+    }
+  }
+  
+  // Commits addressed by int id for history walks. Ids below graphSize are commit-graph positions;
+  // commits the graph does not cover (newer than it, or no graph at all) are parsed from their
+  // objects and numbered after it, with an unknown (infinite) generation.
+  static class CommitIndex {
+    static final int GENERATION_INFINITY = Integer.MAX_VALUE;
+    
+    // Walk flags
+    static final int SEEN = 1;
+    static final int UNINTERESTING = 2;
+    static final int QUEUED = 4;
+    static final int PARENT1 = 8;
+    static final int PARENT2 = 16;
+    static final int STALE = 32;
+    static final int RESULT = 64;
+    
+    final File gitDir;
+    final CommitGraph graph;
+    final int graphSize;
+    final Map<String, Integer> extraIds = new HashMap<>();
+    final List<String> extraHashes = new ArrayList<>();
+    final List<Commit> extras = new ArrayList<>();
+    byte[] flags;
+    
+    CommitIndex(File gitDir) throws IOException {
+      this.gitDir = gitDir;
+      this.graph = CommitGraph.open(gitDir);
+      this.graphSize = graph == null ? 0 : graph.size;
+      this.flags = new byte[graphSize + 64];
+    }
+    
+    // Id of a revision given on the command line, peeling tags. Supports ~<n> and ^<n> suffixes.
+    int resolve(String rev) throws IOException {
+      int suffix = 1;
+      while (suffix < rev.length() && rev.charAt(suffix) != '~' && rev.charAt(suffix) != '^') suffix++;
+      
+      String commit = peelToCommit(gitDir, resolveRevision(gitDir, rev.substring(0, suffix)));
+      if (commit == null) {
+        throw new RuntimeException("Not a commit: " + rev);
+      }
+      int id = lookup(commit);
+      
+      while (suffix < rev.length()) {
+        char op = rev.charAt(suffix++);
+        int start = suffix;
+        while (suffix < rev.length() && Character.isDigit(rev.charAt(suffix))) suffix++;
+        int n = suffix > start ? Integer.parseInt(rev.substring(start, suffix)) : 1;
+      
+        // ~n follows first parents n times, ^n picks the nth parent
+        for (int step = 0; step < (op == '~' ? n : Math.min(n, 1)); step++) {
+          int[] parents = parents(id);
+          int pick = op == '~' ? 0 : n - 1;
+          if (pick >= parents.length) {
+            throw new RuntimeException("Unknown revision: " + rev);
+          }
+          id = parents[pick];
+        }
+      }
+      return id;
+    }
+    
+    int lookup(String hash) {
+      if (graph != null) {
+        int pos = graph.find(hexToBytes(hash));
+        if (pos >= 0) return pos;
+      }
+      Integer id = extraIds.get(hash);
+      if (id != null) return id;
+      
+      byte[] content = loadObjectFromDisk(gitDir, hash);
+      if (content == null) {
+        throw new RuntimeException("Commit not found: " + hash);
+      }
+      id = graphSize + extras.size();
+      extras.add(Commit.parse(content, 0));
+      extraHashes.add(hash);
+      extraIds.put(hash, id);
+      if (id >= flags.length) flags = Arrays.copyOf(flags, flags.length * 2);
+      return id;
+    }
+    
+    String hash(int id) {
+      return id < graphSize ? graph.hash(id) : extraHashes.get(id - graphSize);
+    }
+    
+    long time(int id) {
+      return id < graphSize ? graph.time(id) : extras.get(id - graphSize).time;
+    }
+    
+    int generation(int id) {
+      return id < graphSize ? graph.generation(id) : GENERATION_INFINITY;
+    }
+    
+    String tree(int id) {
+      return id < graphSize ? graph.tree(id) : extras.get(id - graphSize).tree;
+    }
+    
+    int[] parents(int id) {
+      if (id < graphSize) return graph.parents(id);
+      
+      Commit commit = extras.get(id - graphSize);
+      if (commit.parentIds == null) {
+        int[] ids = new int[commit.parents.size()];
+        for (int i = 0; i < ids.length; i++) ids[i] = lookup(commit.parents.get(i));
+        commit.parentIds = ids;
+      }
+      return commit.parentIds;
+    }
+    
+    void clearFlags() {
+      Arrays.fill(flags, (byte) 0);
+    }
+    
+    // Newest commit date first, like git's default rev-list order. Ties are left to the queue,
+    // which keeps them in the order they were queued; ids are no guide, as graph positions
+    // follow hash order.
+    int newerFirst(int a, int b) {
+      return Long.compare(time(b), time(a));
+    }
+    
+    // Descendants before ancestors: higher generation first, then newer date
+    int higherGenerationFirst(int a, int b) {
+      int cmp = Integer.compare(generation(b), generation(a));
+      return cmp != 0 ? cmp : newerFirst(a, b);
+    }
+    
+    // Commits reachable from include but not from exclude, newest first, at most limit (-1 for all)
+    void revList(List<Integer> include, List<Integer> exclude, int limit, IntConsumer emit) {
+      clearFlags();
+      IntHeap queue = new IntHeap(this::newerFirst);
+      int interesting = 0;
+      for (int id : exclude) {
+        if ((flags[id] & SEEN) == 0) {
+          flags[id] |= SEEN | UNINTERESTING | QUEUED;
+          queue.push(id);
+        }
+      }
+      for (int id : include) {
+        if ((flags[id] & SEEN) == 0) {
+          flags[id] |= SEEN | QUEUED;
+          queue.push(id);
+          interesting++;
+        }
+      }
+      
+      // With exclusions a commit is only final once nothing interesting is left in the queue
+      List<Integer> limited = exclude.isEmpty() ? null : new ArrayList<>();
+      int emitted = 0;
+      while (queue.size > 0 && interesting > 0) {
+        int id = queue.pop();
+        flags[id] &= ~QUEUED;
+        boolean uninteresting = (flags[id] & UNINTERESTING) != 0;
+        if (!uninteresting) interesting--;
+        
+        for (int parent : parents(id)) {
+          if (uninteresting) {
+            interesting -= markUninteresting(parent, queue);
+          } else if ((flags[parent] & SEEN) == 0) {
+            flags[parent] |= SEEN | QUEUED;
+            queue.push(parent);
+            interesting++;
+          }
+        }
+        
+        if (uninteresting) continue;
+        if (limited != null) {
+          limited.add(id);
+        } else {
+          emit.accept(id);
+          if (++emitted == limit) return;
+        }
+      }
+      
+      if (limited == null) return;
+      for (int id : limited) {
+        if ((flags[id] & UNINTERESTING) != 0) continue;
+        emit.accept(id);
+        if (++emitted == limit) return;
+      }
+    }
+    
+    // Mark a commit and everything already walked below it uninteresting. Returns how many
+    // interesting commits still waiting in the queue were flipped.
+    int markUninteresting(int start, IntHeap queue) {
+      int flipped = 0;
+      int[] stack = { start };
+      int depth = 1;
+      while (depth > 0) {
+        int id = stack[--depth];
+        if ((flags[id] & UNINTERESTING) != 0) continue;
+        
+        if ((flags[id] & SEEN) == 0) {
+          flags[id] |= SEEN | UNINTERESTING | QUEUED;
+          queue.push(id);
+          continue;
+        }
+        flags[id] |= UNINTERESTING;
+        if ((flags[id] & QUEUED) != 0) {
+          // Its parents are handled when it comes out of the queue
+          flipped++;
+          continue;
+        }
+        for (int parent : parents(id)) {
+          if (depth == stack.length) stack = Arrays.copyOf(stack, depth * 2 + 1);
+          stack[depth++] = parent;
+        }
+      }
+      return flipped;
+    }
+    
+    // Whether ancestor is reachable from descendant. Generation numbers prune every commit that
+    // is too old to lead to the ancestor.
+    boolean isAncestor(int ancestor, int descendant) {
+      clearFlags();
+      int minGeneration = generation(ancestor) == GENERATION_INFINITY ? 0 : generation(ancestor);
+      int[] stack = { descendant };
+      int depth = 1;
+      flags[descendant] |= SEEN;
+      while (depth > 0) {
+        int id = stack[--depth];
+        if (id == ancestor) return true;
+        
+        for (int parent : parents(id)) {
+          if ((flags[parent] & SEEN) != 0 || generation(parent) < minGeneration) continue;
+          flags[parent] |= SEEN;
+          if (depth == stack.length) stack = Arrays.copyOf(stack, depth * 2);
+          stack[depth++] = parent;
+        }
+      }
+      return false;
+    }
+    
+    // Best common ancestors of a and b: paint down from both in generation order until only
+    // commits reachable from both (stale) remain, then drop bases that are ancestors of others
+    List<Integer> mergeBases(int a, int b) {
+      if (a == b) return new ArrayList<>(List.of(a));
+      
+      clearFlags();
+      IntHeap queue = new IntHeap(this::higherGenerationFirst);
+      flags[a] |= PARENT1;
+      flags[b] |= PARENT2;
+      queue.push(a);
+      queue.push(b);
+      
+      List<Integer> results = new ArrayList<>();
+      while (queue.size > 0 && queue.any(id -> (flags[id] & STALE) == 0)) {
+        int id = queue.pop();
+        byte paint = (byte) (flags[id] & (PARENT1 | PARENT2 | STALE));
+        if ((paint & (PARENT1 | PARENT2)) == (PARENT1 | PARENT2)) {
+          if ((flags[id] & RESULT) == 0) {
+            flags[id] |= RESULT;
+            results.add(id);
+          }
+          paint |= STALE;
+        }
+        
+        for (int parent : parents(id)) {
+          if ((flags[parent] & paint) == paint) continue;
+          flags[parent] |= paint;
+          queue.push(parent);
+        }
+      }
+      
+      List<Integer> bases = new ArrayList<>();
+      for (int candidate : results) {
+        boolean redundant = false;
+        for (int other : results) {
+          if (other != candidate && isAncestor(candidate, other)) {
+            redundant = true;
+            break;
+          }
+        }
+        if (!redundant) bases.add(candidate);
+      }
+      bases.sort(this::newerFirst);
+      return bases;
+    }
+  }
+  
+  // Binary heap of int ids in comparator order, without boxing. Ids the comparator ties come
+  // out in the order they were pushed, like git's prio_queue.
+  static class IntHeap {
+    final IntBinaryOperator order;  // negative when the first id should come out first
+    int[] items = new int[64];
+    int[] sequence = new int[64];   // push counter of each item, for ties
+    int size;
+    int pushed;
+    
+    IntHeap(IntBinaryOperator order) {
+      this.order = order;
+    }
+    
+    boolean before(int id, int seq, int i) {
+      int cmp = order.applyAsInt(id, items[i]);
+      return cmp != 0 ? cmp < 0 : seq < sequence[i];
+    }
+    
+    void push(int id) {
+      if (size == items.length) {
+        items = Arrays.copyOf(items, size * 2);
+        sequence = Arrays.copyOf(sequence, size * 2);
+      }
+      int seq = pushed++;
+      int i = size++;
+      while (i > 0) {
+        int parent = (i - 1) >>> 1;
+        if (!before(id, seq, parent)) break;
+        items[i] = items[parent];
+        sequence[i] = sequence[parent];
+        i = parent;
+      }
+      items[i] = id;
+      sequence[i] = seq;
+    }
+    
+    // The last item stays at items[size] while it sifts down, so it can be compared in place
+    int pop() {
+      int top = items[0];
+      size--;
+      int i = 0;
+      while (true) {
+        int child = i * 2 + 1;
+        if (child >= size) break;
+        if (child + 1 < size && before(items[child + 1], sequence[child + 1], child)) child++;
+        if (!before(items[child], sequence[child], size)) break;
+        items[i] = items[child];
+        sequence[i] = sequence[child];
+        i = child;
+      }
+      items[i] = items[size];
+      sequence[i] = sequence[size];
+      return top;
+    }
+    
+    boolean any(IntPredicate test) {
+      for (int i = 0; i < size; i++) {
+        if (test.test(items[i])) return true;
+      }
+      return false;
+    }
+  }
+  
+  // Clones or updates every repository of a manifest as a bare mirror, all in one JVM. Each
+  // repository runs on its own virtual thread, so thousands of blocking downloads cost no
+  // platform threads, and per-host semaphores cap the connections to any one server. Indexing
+  // a received pack (inflate, delta resolution, hashing) is CPU work and runs as one task on a
+  // fixed pool sized to the cores, keeping it off the carriers the network threads need. At most
+  // one pack per worker is indexed at a time, so each gets an equal share of the cache budget.
+  static class Mirror implements AutoCloseable {
+    final ExecutorService cpu;
+    final long cacheLimit;
+    final int perHost;
+    final Map<String, Semaphore> hosts = new ConcurrentHashMap<>();
+    
+    Mirror(int perHost, int cpus) {
+      this.perHost = perHost;
+      this.cacheLimit = MIRROR_CACHE_BUDGET / cpus;
+      this.cpu = Executors.newFixedThreadPool(cpus, r -> {
+        Thread thread = new Thread(r, "mirror-index");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    
+    // Manifest lines are "<url> [<directory>]"; the directory defaults to the URL's last path
+    // segment. Blank lines and lines starting with # are skipped.
+    static List<String[]> readManifest(File file) throws IOException {
+      List<String[]> repos = new ArrayList<>();
+      for (String line : Files.readAllLines(file.toPath())) {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) continue;
+        
+        String[] fields = line.split("\\s+");
+        String url = fields[0].replaceAll("/+$", "");
+        String dir = fields.length > 1 ? fields[1] : url.substring(url.lastIndexOf('/') + 1);
+        repos.add(new String[] { url, dir.endsWith(".git") ? dir : dir + ".git" });
+      }
+      return repos;
+    }
+    
+    // Mirror every repository, at most jobs at a time, reporting each as it finishes; false if
+    // any of them failed
+    boolean mirrorAll(List<String[]> repos, int jobs) throws InterruptedException {
+      Semaphore running = new Semaphore(jobs);
+      boolean ok = true;
+      try (ExecutorService io = Executors.newVirtualThreadPerTaskExecutor()) {
+        CompletionService<String> completion = new ExecutorCompletionService<>(io);
+        for (String[] repo : repos) {
+          completion.submit(() -> {
+            running.acquire();
+            try {
+              return repo[1] + ": " + mirrorRepository(repo[0], new File(repo[1]));
+            } catch (Exception e) {
+              throw new IOException(repo[0] + ": " + e.getMessage(), e);
+            } finally {
+              running.release();
+            }
+          });
+        }
+        
+        for (int i = 0; i < repos.size(); i++) {
+          try {
+            System.out.println(completion.take().get());
+          } catch (ExecutionException e) {
+            System.err.println("error: " + e.getCause().getMessage());
+            ok = false;
+          }
+        }
+      }
+      return ok;
+    }
+    
+    // Bring one bare mirror up to date: fetch whatever the remote refs need that is not here yet,
+    // then make the local refs an exact copy of the remote ones
+    String mirrorRepository(String url, File gitDir) throws Exception {
+      new File(gitDir, "objects/pack").mkdirs();
+      new File(gitDir, "refs/heads").mkdirs();
+      new File(gitDir, "refs/tags").mkdirs();
+      File headFile = new File(gitDir, "HEAD");
+      if (!headFile.exists()) {
+        Files.write(headFile.toPath(), "ref: refs/heads/main\n".getBytes());
+      }
+      
+      Set<String> capabilities = new HashSet<>();
+      Map<String, String> remote;
+      try (Stats.Phase phase = Stats.begin("discover-refs")) {
+        acquire(url);
+        try {
+          remote = discoverRefs(url + "/info/refs?service=git-upload-pack", capabilities);
+        } finally {
+          release(url);
+        }
+      }
+      remote.keySet().removeIf(ref -> !ref.startsWith("refs/") || ref.endsWith("^{}"));
+      Map<String, String> local = readRefs(gitDir);
+      
+      Set<String> wants = new LinkedHashSet<>();
+      for (String sha : remote.values()) {
+        if (!hasObject(gitDir, sha)) wants.add(sha);
+      }
+      Set<String> haves = new LinkedHashSet<>();
+      for (String sha : local.values()) {
+        if (hasObject(gitDir, sha)) haves.add(sha);
+      }
+      int objects = wants.isEmpty() ? 0 : fetch(url, gitDir, wants, haves);
+      
+      // Refs: exact copy of the remote, including deletions
+      int changed = 0;
+      for (Map.Entry<String, String> ref : remote.entrySet()) {
+        if (!ref.getValue().equals(local.get(ref.getKey()))) {
+          File refFile = new File(gitDir, ref.getKey());
+          refFile.getParentFile().mkdirs();
+          Files.write(refFile.toPath(), (ref.getValue() + "\n").getBytes());
+          changed++;
+        }
+      }
+      Set<String> stale = new HashSet<>(local.keySet());
+      stale.removeAll(remote.keySet());
+      if (!stale.isEmpty()) {
+        for (String ref : stale) Files.deleteIfExists(new File(gitDir, ref).toPath());
+        File packedRefs = new File(gitDir, "packed-refs");
+        if (packedRefs.isFile()) {
+          List<String> lines = new ArrayList<>(Files.readAllLines(packedRefs.toPath()));
+          lines.removeIf(line -> line.length() > 41 && stale.contains(line.substring(41)));
+          Files.write(packedRefs.toPath(), lines);
+        }
+      }
+      for (String capability : capabilities) {
+        if (capability.startsWith("symref=HEAD:")) {
+          Files.write(headFile.toPath(), ("ref: " + capability.substring(12) + "\n").getBytes());
+        }
+      }
+      
+      return String.format("%d refs updated, %d deleted, %d objects fetched", changed, stale.size(), objects);
+    }
+    
+    // Download the pack on this (virtual) thread, then index it on the CPU pool
+    int fetch(String url, File gitDir, Collection<String> wants, Collection<String> haves) throws Exception {
+      File packDir = new File(gitDir, "objects/pack");
+      File spoolFile = new File(packDir, "incoming.pack");
+      File entriesFile = new File(packDir, "incoming.entries");
+      Files.deleteIfExists(spoolFile.toPath());
+      Files.deleteIfExists(entriesFile.toPath());
+      CloneCheckpoint checkpoint = new CloneCheckpoint(new File(packDir, "incoming.checkpoint"));
+      checkpoint.reset(wants.iterator().next());
+      
+      try {
+        try (PackSpool spool = new PackSpool(spoolFile, checkpoint)) {
+          try (Stats.Phase phase = Stats.begin("fetch-pack")) {
+            acquire(url);
+            try {
+              fetchPackfile(url + "/git-upload-pack", wants, haves, spool);
+            } finally {
+              release(url);
+            }
+          }
+          spool.finish(null);
+          
+          Future<?> indexed = cpu.submit(() -> {
+            try (Stats.Phase phase = Stats.begin("index-pack");
+                 ObjectStore store = new ObjectStore(entriesFile, gitDir, checkpoint, cacheLimit, spoolFile,
+                   obj -> { })) {
+              parsePack(spool, checkpoint, obj -> {
+                if (obj != END_OF_PACK) store.put(obj);
+              });
+              store.finish();
+            }
+            return null;
+          });
+          try {
+            indexed.get();
+          } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception cause) throw cause;
+            throw e;
+          }
+        }
+        finishPack(spoolFile, entriesFile, gitDir);
+        return checkpoint.objects;
+      } finally {
+        Files.deleteIfExists(spoolFile.toPath());
+        Files.deleteIfExists(entriesFile.toPath());
+        Files.deleteIfExists(checkpoint.file.toPath());
+      }
+    }
+    
+    // One permit of the URL's host: scheme, host and port
+    void acquire(String url) throws InterruptedException {
+      hosts.computeIfAbsent(hostOf(url), k -> new Semaphore(perHost)).acquire();
+    }
+    
+    void release(String url) {
+      hosts.get(hostOf(url)).release();
+    }
+    
+    static String hostOf(String url) {
+      int start = url.indexOf("://") + 3;
+      int end = url.indexOf('/', start);
+      return end < 0 ? url : url.substring(0, end);
+    }
+    
+    @Override
+    public void close() {
+      cpu.shutdownNow();
+    }
+  }
+  
+  // fast-import: build objects from git's fast-import command stream (blob, commit, tag, reset,
+  // marks and the M/D/C/R/deleteall file commands) and write them straight into one new pack,
+  // never as loose objects. Repeated objects are dropped by looking them up in the pack's
+  // ObjectTable, marks live in one growable array, and branch trees are edited in memory so a
+  // commit re-hashes only the directories it touched. The object count in the pack header is
+  // patched once at the end, then the pack is checksummed, its .idx written and refs updated.
+  static class FastImport implements Closeable {
+    static final byte[] EMPTY_TREE = hexToBytes(EMPTY_TREE_ID);
+    
+    final File gitDir;
+    final InputStream in;
+    final File tmpPack;
+    final OutputStream pack;
+    final ObjectTable table = new ObjectTable(1 << 16);
+    final Deflater deflater = new Deflater();
+    final CRC32 crc = new CRC32();
+    final MessageDigest digest;
+    final Map<String, Branch> branches = new LinkedHashMap<>();
+    final byte[] buffer = new byte[1 << 16];
+    final ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream(256);
+    final byte[] entryHeader = new byte[32];
+    byte[] marks = new byte[20 * 1024]; // mark n at n * 20; all zeros when unset
+    int maxMark;
+    int bufferPos;
+    int bufferEnd;
+    long position = 12;
+    int objects;
+    int duplicates;
+    PackFile reader;    // reads back objects of the pack being written
+    String pushedBack;  // a line read one command too far
+    boolean finished;
+    
+    // A ref being imported: its tip, and its tree as edited by the commands so far
+    static class Branch {
+      byte[] commit;
+      Node tree;
+    }
+    
+    // Entry of an edited tree. Directories load their children on first use; a directory whose
+    // id is null has changed and is hashed again when the next commit writes its tree. The last
+    // version read or written is kept as the delta base for the next one, as git does.
+    static class Node {
+      final byte[] name;
+      int mode;
+      byte[] id;
+      Map<String, Node> children;
+      byte[] content;
+      byte[] contentId;
+      
+      Node(byte[] name, int mode, byte[] id) {
+        this.name = name;
+        this.mode = mode;
+        this.id = id;
+      }
+      
+      boolean isTree() {
+        return mode == 040000;
+      }
+    }
+    
+    FastImport(File gitDir, InputStream in) throws IOException, NoSuchAlgorithmException {
+      this.gitDir = gitDir;
+      this.in = in;
+      this.digest = MessageDigest.getInstance("SHA-1");
+      File packDir = new File(gitDir, "objects/pack");
+      packDir.mkdirs();
+      this.tmpPack = File.createTempFile("tmp_pack_", ".pack", packDir);
+      this.pack = new BufferedOutputStream(new FileOutputStream(tmpPack), 1 << 16);
+      
+      // Signature and version; the object count stays 0 until finish()
+      pack.write(new byte[] { 'P', 'A', 'C', 'K', 0, 0, 0, 2, 0, 0, 0, 0 });
+    }
+    
+    void run() throws IOException {
+      String line;
+      while ((line = readLine()) != null) {
+        if (line.isEmpty() || line.startsWith("#")) continue;
+        
+        if (line.equals("blob")) {
+          blob();
+        } else if (line.startsWith("commit ")) {
+          commit(line.substring(7));
+        } else if (line.startsWith("tag ")) {
+          tag(line.substring(4));
+        } else if (line.startsWith("reset ")) {
+          reset(line.substring(6));
+        } else if (line.startsWith("progress ")) {
+          System.out.println(line);
+        } else if (line.equals("done")) {
+          break;
+        } else if (!line.equals("checkpoint") && !line.startsWith("feature ") && !line.startsWith("option ")) {
+          throw new RuntimeException("Unsupported fast-import command: " + line);
+        }
+      }
+    }
+    
+    void blob() throws IOException {
+      String line = readLine();
+      int mark = 0;
+      if (line != null && line.startsWith("mark :")) {
+        mark = Integer.parseInt(line.substring(6));
+        line = readLine();
+      }
+      if (line != null && line.startsWith("original-oid ")) {
+        line = readLine();
+      }
+      setMark(mark, store(3, readData(line)));
+    }
+    
+    void commit(String ref) throws IOException {
+      Branch branch = branches.computeIfAbsent(ref, k -> new Branch());
+      int mark = 0;
+      String author = null;
+      String committer = null;
+      String encoding = null;
+      String line = readLine();
+      while (line != null && !line.startsWith("data ")) {
+        if (line.startsWith("mark :")) {
+          mark = Integer.parseInt(line.substring(6));
+        } else if (line.startsWith("author ")) {
+          author = line.substring(7);
+        } else if (line.startsWith("committer ")) {
+          committer = line.substring(10);
+        } else if (line.startsWith("encoding ")) {
+          encoding = line.substring(9);
+        } else if (!line.startsWith("original-oid ")) {
+          throw new RuntimeException("Unexpected line in commit " + ref + ": " + line);
+        }
+        line = readLine();
+      }
+      if (committer == null) {
+        throw new RuntimeException("Missing committer in commit " + ref);
+      }
+      byte[] message = readData(line);
+      
+      // Parents: an explicit from replaces the branch's own tip
+      List<byte[]> parents = new ArrayList<>();
+      line = readLine();
+      if (line != null && line.startsWith("from ")) {
+        branch.commit = resolveCommitish(line.substring(5));
+        branch.tree = null;
+        line = readLine();
+      }
+      if (branch.commit != null) {
+        parents.add(branch.commit);
+      }
+      while (line != null && line.startsWith("merge ")) {
+        parents.add(resolveCommitish(line.substring(6)));
+        line = readLine();
+      }
+      if (branch.tree == null) {
+        branch.tree = branch.commit == null ? emptyTree() : treeOfCommit(branch.commit);
+      }
+      
+      // File commands, up to the first line that is not one
+      while (line != null) {
+        if (line.startsWith("M ")) {
+          String[] parts = line.split(" ", 4);
+          int mode = parseMode(parts[1]);
+          byte[] id = parts[2].equals("inline") ? store(3, readData(readLine())) : resolveDataref(parts[2]);
+          String path = unquotePath(parts[3]);
+          put(branch.tree, path, new Node(lastName(path), mode, id));
+        } else if (line.startsWith("D ")) {
+          remove(branch.tree, unquotePath(line.substring(2)));
+        } else if (line.startsWith("C ") || line.startsWith("R ")) {
+          String[] paths = splitPaths(line.substring(2));
+          Node source = remove(branch.tree, paths[0]);
+          if (source == null) {
+            throw new RuntimeException("Path not found: " + paths[0]);
+          }
+          if (line.startsWith("C ")) {
+            // The copy shares nothing mutable with the source: it reloads from the written id
+            put(branch.tree, paths[0], source);
+            byte[] id = source.isTree() ? writeTree(source) : source.id;
+            put(branch.tree, paths[1], new Node(lastName(paths[1]), source.mode, id));
+          } else {
+            put(branch.tree, paths[1], new Node(lastName(paths[1]), source.mode, source.isTree() ? writeTree(source) : source.id));
+          }
+        } else if (line.equals("deleteall")) {
+          branch.tree = emptyTree();
+        } else {
+          if (!line.isEmpty()) pushedBack = line;
+          break;
+        }
+        line = readLine();
+      }
+      
+      // Empty directories are never stored, only an empty root
+      byte[] tree = writeTree(branch.tree);
+      if (tree == EMPTY_TREE) {
+        store(2, new byte[0]);
+      }
+      
+      StringBuilder header = new StringBuilder();
+      header.append("tree ").append(bytesToHex(tree)).append('\n');
+      for (byte[] parent : parents) {
+        header.append("parent ").append(bytesToHex(parent)).append('\n');
+      }
+      header.append("author ").append(author != null ? author : committer).append('\n');
+      header.append("committer ").append(committer).append('\n');
+      if (encoding != null) {
+        header.append("encoding ").append(encoding).append('\n');
+      }
+      header.append('\n');
+      
+      byte[] head = header.toString().getBytes(StandardCharsets.UTF_8);
+      byte[] content = Arrays.copyOf(head, head.length + message.length);
+      System.arraycopy(message, 0, content, head.length, message.length);
+      branch.commit = store(1, content);
+      setMark(mark, branch.commit);
+    }
+    
+    void tag(String name) throws IOException {
+      String line = readLine();
+      int mark = 0;
+      byte[] target = null;
+      String tagger = null;
+      while (line != null && !line.startsWith("data ")) {
+        if (line.startsWith("mark :")) {
+          mark = Integer.parseInt(line.substring(6));
+        } else if (line.startsWith("from ")) {
+          target = resolveCommitish(line.substring(5));
+        } else if (line.startsWith("tagger ")) {
+          tagger = line.substring(7);
+        } else if (!line.startsWith("original-oid ")) {
+          throw new RuntimeException("Unexpected line in tag " + name + ": " + line);
+        }
+        line = readLine();
+      }
+      if (target == null) {
+        throw new RuntimeException("Missing from in tag " + name);
+      }
+      byte[] message = readData(line);
+      
+      StringBuilder header = new StringBuilder();
+      header.append("object ").append(bytesToHex(target)).append('\n');
+      header.append("type ").append(typeName(typeOf(target))).append('\n');
+      header.append("tag ").append(name).append('\n');
+      if (tagger != null) {
+        header.append("tagger ").append(tagger).append('\n');
+      }
+      header.append('\n');
+      
+      byte[] head = header.toString().getBytes(StandardCharsets.UTF_8);
+      byte[] content = Arrays.copyOf(head, head.length + message.length);
+      System.arraycopy(message, 0, content, head.length, message.length);
+      Branch ref = branches.computeIfAbsent("refs/tags/" + name, k -> new Branch());
+      ref.commit = store(4, content);
+      ref.tree = null;
+      setMark(mark, ref.commit);
+    }
+    
+    void reset(String ref) throws IOException {
+      Branch branch = branches.computeIfAbsent(ref, k -> new Branch());
+      branch.commit = null;
+      branch.tree = null;
+      
+      String line = readLine();
+      if (line != null && line.startsWith("from ")) {
+        branch.commit = resolveCommitish(line.substring(5));
+      } else if (line != null && !line.isEmpty()) {
+        pushedBack = line;
+      }
+    }
+    
+    byte[] store(int type, byte[] content) throws IOException {
+      return store(type, content, null, null);
+    }
+    
+    // Add an object to the pack unless it is already in it; returns its id. Given the previous
+    // version of the object, it goes in as an OFS_DELTA when that version is in this pack too.
+    byte[] store(int type, byte[] content, byte[] baseId, byte[] base) throws IOException {
+      digest.update((typeName(type) + " " + content.length + "\0").getBytes(StandardCharsets.US_ASCII));
+      byte[] id = digest.digest(content);
+      if (table.find(id) >= 0) {
+        duplicates++;
+        return id;
+      }
+      
+      int baseSlot = baseId == null ? -1 : table.find(baseId);
+      byte[] delta = null;
+      if (baseSlot >= 0 && (table.depths[baseSlot] & 0xFF) < REPACK_DEPTH && content.length >= REPACK_MIN_DELTA_SIZE) {
+        delta = new DeltaIndex(base).encode(content, content.length / 2);
+      }
+      
+      byte[] data = deflate(deflater, delta != null ? delta : content);
+      long size = delta != null ? delta.length : content.length;
+      int n = 0;
+      int b = ((delta != null ? 6 : type) << 4) | (int) (size & 15);
+      size >>>= 4;
+      while (size != 0) {
+        entryHeader[n++] = (byte) (b | 0x80);
+        b = (int) (size & 0x7F);
+        size >>>= 7;
+      }
+      entryHeader[n++] = (byte) b;
+      if (delta != null) {
+        long distance = position - table.offsets[baseSlot];
+        byte[] encoded = new byte[10];
+        int pos = encoded.length - 1;
+        encoded[pos] = (byte) (distance & 0x7F);
+        while ((distance >>>= 7) != 0) {
+          encoded[--pos] = (byte) (0x80 | (--distance & 0x7F));
+        }
+        System.arraycopy(encoded, pos, entryHeader, n, encoded.length - pos);
+        n += encoded.length - pos;
+      }
+      
+      crc.reset();
+      crc.update(entryHeader, 0, n);
+      crc.update(data);
+      pack.write(entryHeader, 0, n);
+      pack.write(data);
+      int slot = table.insert(id, position, (int) crc.getValue(), type);
+      table.depths[slot] = (byte) (delta != null ? (table.depths[baseSlot] & 0xFF) + 1 : 0);
+      position += n + data.length;
+      objects++;
+      Stats.OBJECTS.increment();
+      return id;
+    }
+    
+    // Content of an object from this pack or the repository
+    byte[] readObject(byte[] id) throws IOException {
+      int slot = table.find(id);
+      if (slot >= 0) {
+        pack.flush();
+        if (reader == null) reader = new PackFile(tmpPack, table);
+        return reader.content(table.offsets[slot], false);
+      }
+      byte[] content = loadObjectFromDisk(gitDir, bytesToHex(id));
+      if (content == null) {
+        throw new RuntimeException("Object not found: " + bytesToHex(id));
+      }
+      return content;
+    }
+    
+    int typeOf(byte[] id) {
+      int slot = table.find(id);
+      if (slot >= 0) return table.types[slot];
+      byte[] raw = loadRawObjectFromDisk(gitDir, bytesToHex(id));
+      if (raw == null) {
+        throw new RuntimeException("Object not found: " + bytesToHex(id));
+      }
+      return objectTypeCode(getObjectType(raw));
+    }
+    
+    Node emptyTree() {
+      Node root = new Node(new byte[0], 040000, null);
+      root.children = new HashMap<>();
+      return root;
+    }
+    
+    Node treeOfCommit(byte[] commit) throws IOException {
+      String tree = Commit.parse(readObject(commit), 0).tree;
+      return new Node(new byte[0], 040000, hexToBytes(tree));
+    }
+    
+    Map<String, Node> children(Node dir) throws IOException {
+      if (dir.children == null) {
+        dir.children = new HashMap<>();
+        dir.content = readObject(dir.id);
+        dir.contentId = dir.id;
+        TreeIterator entry = new TreeIterator(dir.content);
+        while (entry.next()) {
+          Node child = new Node(Arrays.copyOfRange(entry.data, entry.nameStart, entry.nameEnd), entry.mode,
+            Arrays.copyOfRange(entry.data, entry.idOffset, entry.idOffset + 20));
+          dir.children.put(entry.name(), child);
+        }
+      }
+      return dir.children;
+    }
+    
+    // Place a node at a path, creating directories (and replacing files) on the way
+    void put(Node root, String path, Node leaf) throws IOException {
+      String[] names = path.split("/");
+      Node dir = root;
+      for (int i = 0; i < names.length - 1; i++) {
+        Node child = children(dir).get(names[i]);
+        dir.id = null;
+        if (child == null || !child.isTree()) {
+          child = new Node(names[i].getBytes(StandardCharsets.UTF_8), 040000, null);
+          child.children = new HashMap<>();
+          dir.children.put(names[i], child);
+        }
+        dir = child;
+      }
+      children(dir).put(names[names.length - 1], leaf);
+      dir.id = null;
+    }
+    
+    // Detach the node at a path, dropping directories left empty; null if there is none
+    Node remove(Node dir, String path) throws IOException {
+      int slash = path.indexOf('/');
+      String name = slash < 0 ? path : path.substring(0, slash);
+      Node child = children(dir).get(name);
+      if (child == null) return null;
+      
+      Node removed;
+      if (slash < 0) {
+        removed = dir.children.remove(name);
+      } else {
+        if (!child.isTree()) return null;
+        removed = remove(child, path.substring(slash + 1));
+        if (removed != null && children(child).isEmpty()) {
+          dir.children.remove(name);
+        }
+      }
+      if (removed != null) dir.id = null;
+      return removed;
+    }
+    
+    // Id of a directory, writing it and every changed directory below it first
+    byte[] writeTree(Node dir) throws IOException {
+      if (dir.id != null) return dir.id;
+      
+      // Like git, leave out directories that ended up empty
+      List<Node> entries = new ArrayList<>(dir.children.size());
+      for (Node entry : dir.children.values()) {
+        if (!entry.isTree() || !Arrays.equals(writeTree(entry), EMPTY_TREE)) entries.add(entry);
+      }
+      entries.sort((a, b) -> TreeIterator.compareNames(a.name, 0, a.name.length, a.isTree(),
+        b.name, 0, b.name.length, b.isTree()));
+      
+      if (entries.isEmpty()) {
+        dir.id = EMPTY_TREE;
+        return dir.id;
+      }
+      
+      ByteArrayOutputStream out = new ByteArrayOutputStream(entries.size() * 40);
+      for (Node entry : entries) {
+        out.write(Integer.toOctalString(entry.mode).getBytes(StandardCharsets.US_ASCII));
+        out.write(' ');
+        out.write(entry.name);
+        out.write(0);
+        out.write(entry.id);
+      }
+      byte[] content = out.toByteArray();
+      dir.id = store(2, content, dir.contentId, dir.content);
+      dir.content = content;
+      dir.contentId = dir.id;
+      return dir.id;
+    }
+    
+    byte[] resolveCommitish(String ref) throws IOException {
+      if (ref.startsWith(":")) return getMark(ref);
+      if (isObjectId(ref)) return hexToBytes(ref);
+      
+      Branch branch = branches.get(ref);
+      if (branch != null && branch.commit != null) return branch.commit;
+      return hexToBytes(resolveRevision(gitDir, ref));
+    }
+    
+    byte[] resolveDataref(String ref) {
+      if (ref.startsWith(":")) return getMark(ref);
+      if (!isObjectId(ref)) {
+        throw new RuntimeException("Invalid dataref: " + ref);
+      }
+      return hexToBytes(ref);
+    }
+    
+    static boolean isObjectId(String ref) {
+      return ref.length() == 40 && ref.chars().allMatch(c -> Character.digit(c, 16) >= 0);
+    }
+    
+    void setMark(int mark, byte[] id) {
+      if (mark <= 0) return;
+      if ((long) mark * 20 + 20 > marks.length) {
+        marks = Arrays.copyOf(marks, (int) Math.min(Integer.MAX_VALUE - 8, Math.max((long) mark * 20 + 20, marks.length * 2L)));
+      }
+      System.arraycopy(id, 0, marks, mark * 20, 20);
+      maxMark = Math.max(maxMark, mark);
+    }
+    
+    byte[] getMark(String ref) {
+      int mark = Integer.parseInt(ref.substring(1));
+      if (mark <= 0 || mark > maxMark) {
+        throw new RuntimeException("Unknown mark: " + ref);
+      }
+      byte[] id = Arrays.copyOfRange(marks, mark * 20, mark * 20 + 20);
+      if (Arrays.equals(id, new byte[20])) {
+        throw new RuntimeException("Unknown mark: " + ref);
+      }
+      return id;
+    }
+    
+    // Marks files hold ":<mark> <id>" lines, as git writes them
+    void importMarks(File file) throws IOException {
+      for (String line : Files.readAllLines(file.toPath())) {
+        int space = line.indexOf(' ');
+        if (line.startsWith(":") && space > 0) {
+          setMark(Integer.parseInt(line.substring(1, space)), hexToBytes(line.substring(space + 1).trim()));
+        }
+      }
+    }
+    
+    void exportMarks(File file) throws IOException {
+      try (BufferedWriter out = Files.newBufferedWriter(file.toPath())) {
+        byte[] unset = new byte[20];
+        for (int mark = 1; mark <= maxMark; mark++) {
+          if (!Arrays.equals(marks, mark * 20, mark * 20 + 20, unset, 0, 20)) {
+            out.write(":" + mark + " " + bytesToHex(marks, mark * 20, 20) + "\n");
+          }
+        }
+      }
+    }
+    
+    // Patch the object count into the header, checksum the pack and install it with its index;
+    // returns the pack, or null when nothing was imported
+    File finish() throws IOException {
+      finished = true;
+      pack.close();
+      if (reader != null) reader.close();
+      if (objects == 0) {
+        Files.delete(tmpPack.toPath());
+        return null;
+      }
+      
+      byte[] checksum;
+      try (RandomAccessFile raf = new RandomAccessFile(tmpPack, "rw")) {
+        raf.seek(8);
+        raf.writeInt(objects);
+        raf.seek(0);
+        digest.reset();
+        byte[] buffer = new byte[1 << 16];
+        int n;
+        while ((n = raf.read(buffer)) > 0) {
+          digest.update(buffer, 0, n);
+        }
+        checksum = digest.digest();
+        raf.write(checksum);
+      }
+      
+      String name = "pack-" + bytesToHex(checksum);
+      File packDir = tmpPack.getParentFile();
+      File packFile = new File(packDir, name + ".pack");
+      Files.move(tmpPack.toPath(), packFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      writePackIndex(new File(packDir, name + ".idx"), table, checksum);
+      return packFile;
+    }
+    
+    void updateRefs() throws IOException {
+      for (Map.Entry<String, Branch> ref : branches.entrySet()) {
+        if (ref.getValue().commit == null) continue;
+        File refFile = new File(gitDir, ref.getKey());
+        refFile.getParentFile().mkdirs();
+        Files.write(refFile.toPath(), (bytesToHex(ref.getValue().commit) + "\n").getBytes());
+      }
+    }
+    
+    // Next line without its LF, or null at the end of the stream
+    String readLine() throws IOException {
+      if (pushedBack != null) {
+        String line = pushedBack;
+        pushedBack = null;
+        return line;
+      }
+      
+      lineBuffer.reset();
+      while (true) {
+        for (int i = bufferPos; i < bufferEnd; i++) {
+          if (buffer[i] != '\n') continue;
+          
+          String line;
+          if (lineBuffer.size() == 0) {
+            line = new String(buffer, bufferPos, i - bufferPos, StandardCharsets.UTF_8);
+          } else {
+            lineBuffer.write(buffer, bufferPos, i - bufferPos);
+            line = lineBuffer.toString(StandardCharsets.UTF_8);
+          }
+          bufferPos = i + 1;
+          return line;
+        }
+        lineBuffer.write(buffer, bufferPos, bufferEnd - bufferPos);
+        if (!fill()) {
+          return lineBuffer.size() == 0 ? null : lineBuffer.toString(StandardCharsets.UTF_8);
+        }
+      }
+    }
+    
+    boolean fill() throws IOException {
+      bufferPos = 0;
+      bufferEnd = Math.max(0, in.read(buffer));
+      return bufferEnd > 0;
+    }
+    
+    // Body of a "data <count>" or "data <<<delimiter>" command, and the optional LF after it
+    byte[] readData(String line) throws IOException {
+      if (line == null || !line.startsWith("data ")) {
+        throw new RuntimeException("Expected data command, got: " + line);
+      }
+      
+      String length = line.substring(5);
+      if (length.startsWith("<<")) {
+        String delimiter = length.substring(2);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        String text;
+        while (!delimiter.equals(text = readLine())) {
+          if (text == null) {
+            throw new EOFException("Unexpected end of stream inside data <<" + delimiter);
+          }
+          out.write(text.getBytes(StandardCharsets.UTF_8));
+          out.write('\n');
+        }
+        return out.toByteArray();
+      }
+      
+      int size = Integer.parseInt(length);
+      byte[] data = new byte[size];
+      int buffered = Math.min(size, bufferEnd - bufferPos);
+      System.arraycopy(buffer, bufferPos, data, 0, buffered);
+      bufferPos += buffered;
+      if (buffered < size && in.readNBytes(data, buffered, size - buffered) != size - buffered) {
+        throw new EOFException("Unexpected end of stream inside data " + size);
+      }
+      if ((bufferPos < bufferEnd || fill()) && buffer[bufferPos] == '\n') {
+        bufferPos++;
+      }
+      return data;
+    }
+    
+    static int parseMode(String mode) {
+      return switch (mode) {
+        case "644" -> 0100644;
+        case "755" -> 0100755;
+        default -> Integer.parseInt(mode, 8);
+      };
+    }
+    
+    static byte[] lastName(String path) {
+      return path.substring(path.lastIndexOf('/') + 1).getBytes(StandardCharsets.UTF_8);
+    }
+    
+    // Source and destination of C and R: the source is quoted or ends at the first space
+    static String[] splitPaths(String args) {
+      int end;
+      if (args.startsWith("\"")) {
+        end = 1;
+        while (args.charAt(end) != '"') end += args.charAt(end) == '\\' ? 2 : 1;
+        end++;
+      } else {
+        end = args.indexOf(' ');
+      }
+      return new String[] { unquotePath(args.substring(0, end)), unquotePath(args.substring(end + 1)) };
+    }
+    
+    // Paths may be C-style quoted, with octal escapes for raw bytes
+    static String unquotePath(String path) {
+      if (!path.startsWith("\"")) return path;
+      
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      for (int i = 1; i < path.length() - 1; i++) {
+        char c = path.charAt(i);
+        if (c != '\\') {
+          out.writeBytes(String.valueOf(c).getBytes(StandardCharsets.UTF_8));
+          continue;
+        }
+        c = path.charAt(++i);
+        switch (c) {
+          case 'n' -> out.write('\n');
+          case 't' -> out.write('\t');
+          case 'a' -> out.write(7);
+          case 'b' -> out.write('\b');
+          case 'f' -> out.write('\f');
+          case 'r' -> out.write('\r');
+          case 'v' -> out.write(11);
+          default -> {
+            if (c >= '0' && c <= '3') {
+              out.write(Integer.parseInt(path.substring(i, i + 3), 8));
+              i += 2;
+            } else {
+              out.write(c);
+            }
+          }
+        }
+      }
+      return out.toString(StandardCharsets.UTF_8);
+    }
+    
+    @Override
+    public void close() throws IOException {
+      deflater.end();
+      if (!finished) {
+        pack.close();
+        if (reader != null) reader.close();
+        Files.deleteIfExists(tmpPack.toPath());
+      }
+    }
+  }
+  
+  // serve [--socket <path>]: one JVM answering a stream of commands against the repository in its
+  // working directory, so pack indexes, delta base caches and JIT-compiled code stay warm between
+  // requests. Each request is one line of shell-style words, e.g. `cat-file -p <hash>`, and runs on
+  // its own virtual thread; responses come back in request order as
+  // "<status> <stdout bytes> <stderr bytes>\n" followed by the captured stdout and stderr.
+  // Read-only commands run side by side; anything else runs alone, after the requests before it.
+  static class Server {
+    // Requests one session may have in flight before it stops reading
+    static final int MAX_PENDING = 256;
+    
+    // Commands that only read the repository; all others may write objects, packs or refs
+    static final Set<String> READ_ONLY = Set.of("cat-file", "ls-tree", "rev-list", "log", "merge-base", "diff-tree");
+    
+    // Shared by read-only requests, exclusive for the rest, across all sessions
+    static final ReadWriteLock REPOSITORY = new ReentrantReadWriteLock();
+    
+    // Output buffers of the request running on this thread, {stdout, stderr}; null outside requests
+    static final InheritableThreadLocal<ByteArrayOutputStream[]> CAPTURE = new InheritableThreadLocal<>();
+    
+    static void serve(String socketPath) throws IOException, InterruptedException {
+      PrintStream stdout = System.out;
+      PrintStream stderr = System.err;
+      System.setOut(new PrintStream(new Redirect(0, stderr), true, StandardCharsets.UTF_8));
+      System.setErr(new PrintStream(new Redirect(1, stderr), true, StandardCharsets.UTF_8));
+      
+      try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+        if (socketPath == null) {
+          session(System.in, new FileOutputStream(FileDescriptor.out), executor);
+          return;
+        }
+        
+        Path path = Paths.get(socketPath);
+        Files.deleteIfExists(path);
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+          server.bind(UnixDomainSocketAddress.of(path));
+          path.toFile().deleteOnExit();
+          while (true) {
+            SocketChannel client = server.accept();
+            executor.submit(() -> {
+              try (client) {
+                session(Channels.newInputStream(client), Channels.newOutputStream(client), executor);
+              }
+              return null;
+            });
+          }
+        }
+      } finally {
+        System.setOut(stdout);
+        System.setErr(stderr);
+      }
+    }
+    
+    // Read requests until end of input, starting each as soon as it arrives; a writer thread sends
+    // the responses in order and flushes whenever it catches up with the requests
+    static void session(InputStream in, OutputStream out, ExecutorService executor)
+        throws IOException, InterruptedException {
+      BlockingQueue<Future<byte[]>> pending = new ArrayBlockingQueue<>(MAX_PENDING);
+      Future<?> writer = executor.submit(() -> {
+        OutputStream buffered = new BufferedOutputStream(out);
+        while (true) {
+          byte[] response = pending.take().get();
+          if (response == null) break;
+          buffered.write(response);
+          if (pending.isEmpty()) buffered.flush();
+        }
+        buffered.flush();
+        return null;
+      });
+      
+      // A writing request waits for every request before it, and later ones wait for it
+      BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+      List<Future<byte[]>> sinceWrite = new ArrayList<>();
+      Future<byte[]> lastWrite = CompletableFuture.completedFuture(null);
+      String line;
+      while ((line = reader.readLine()) != null && !writer.isDone()) {
+        String[] args = splitWords(line);
+        if (args.length == 0) continue;
+        
+        Future<byte[]> response;
+        if (READ_ONLY.contains(args[0])) {
+          Future<byte[]> after = lastWrite;
+          response = executor.submit(() -> {
+            await(after);
+            return execute(args, REPOSITORY.readLock());
+          });
+          sinceWrite.add(response);
+        } else {
+          List<Future<byte[]>> before = new ArrayList<>(sinceWrite);
+          before.add(lastWrite);
+          response = executor.submit(() -> {
+            for (Future<byte[]> request : before) await(request);
+            return execute(args, REPOSITORY.writeLock());
+          });
+          sinceWrite.clear();
+          lastWrite = response;
+        }
+        pending.put(response);
+      }
+      pending.put(CompletableFuture.completedFuture(null));
+      
+      try {
+        writer.get();
+      } catch (ExecutionException e) {
+        throw new IOException("Failed to write responses", e.getCause());
+      }
+    }
+    
+    static void await(Future<byte[]> request) throws InterruptedException {
+      try {
+        request.get();
+      } catch (ExecutionException e) {
+        // Its failure is reported in its own response
+      }
+    }
+    
+    static byte[] execute(String[] args, Lock lock) {
+      ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+      ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+      CAPTURE.set(new ByteArrayOutputStream[] { stdout, stderr });
+      EXIT_STATUS.set(0);
+      
+      int status;
+      lock.lock();
+      try {
+        if (args[0].equals("serve")) {
+          throw new RuntimeException("serve cannot be nested");
+        }
+        run(args);
+        status = EXIT_STATUS.get();
+      } catch (RuntimeException | Error e) {
+        System.err.println("fatal: " + (e.getMessage() != null ? e.getMessage() : e.toString()));
+        status = 128;
+      } finally {
+        // A write may have replaced packs: readers reopen them instead of using closed ones
+        if (lock == REPOSITORY.writeLock()) {
+          closeAllPacks();
+        }
+        lock.unlock();
+        CAPTURE.remove();
+      }
+      
+      byte[] out = stdout.toByteArray();
+      byte[] err = stderr.toByteArray();
+      ByteArrayOutputStream response = new ByteArrayOutputStream(out.length + err.length + 32);
+      response.writeBytes((status + " " + out.length + " " + err.length + "\n").getBytes(StandardCharsets.UTF_8));
+      response.writeBytes(out);
+      response.writeBytes(err);
+      return response.toByteArray();
+    }
+    
+    // Split a request line like a shell would: whitespace separates words, single quotes are
+    // literal, double quotes and backslashes escape
+    static String[] splitWords(String line) {
+      List<String> words = new ArrayList<>();
+      StringBuilder word = new StringBuilder();
+      boolean inWord = false;
+      char quote = 0;
+      for (int i = 0; i < line.length(); i++) {
+        char c = line.charAt(i);
+        if (quote == '\'') {
+          if (c == '\'') quote = 0;
+          else word.append(c);
+        } else if (c == '\\' && i + 1 < line.length()) {
+          word.append(line.charAt(++i));
+          inWord = true;
+        } else if (quote == '"') {
+          if (c == '"') quote = 0;
+          else word.append(c);
+        } else if (c == '\'' || c == '"') {
+          quote = c;
+          inWord = true;
+        } else if (Character.isWhitespace(c)) {
+          if (inWord) words.add(word.toString());
+          word.setLength(0);
+          inWord = false;
+        } else {
+          word.append(c);
+          inWord = true;
+        }
+      }
+      if (quote != 0) {
+        throw new RuntimeException("Unterminated quote in request: " + line);
+      }
+      if (inWord) words.add(word.toString());
+      return words.toArray(new String[0]);
+    }
+    
+    // System.out or System.err while serving: bytes go to the current request's buffer. Output
+    // from threads outside any request goes to the real stderr so it cannot corrupt responses.
+    static class Redirect extends OutputStream {
+      final int stream;
+      final OutputStream fallback;
+      
+      Redirect(int stream, OutputStream fallback) {
+        this.stream = stream;
+        this.fallback = fallback;
+      }
+      
+      OutputStream target() {
+        ByteArrayOutputStream[] capture = CAPTURE.get();
+        return capture != null ? capture[stream] : fallback;
+      }
+      
+      @Override
+      public void write(int b) throws IOException {
+        target().write(b);
+      }
+      
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        target().write(b, off, len);
+      }
+      
+      @Override
+      public void flush() throws IOException {
+        target().flush();
+      }
+    }
+  }
+  
+  // Performance instrumentation: per-phase wall/CPU time and counters. Phases and a final
+  // counter snapshot are emitted as JFR events when Flight Recorder is running; the text report
+  // is printed with --stats or GIT_TRACE_PERFORMANCE.
+  static class Stats {
+    static final LongAdder BYTES_RECEIVED = new LongAdder();
+    static final LongAdder OBJECTS = new LongAdder();
+    static final LongAdder INFLATE_IN = new LongAdder();
+    static final LongAdder INFLATE_OUT = new LongAdder();
+    static final LongAdder DEFLATE_IN = new LongAdder();
+    static final LongAdder DEFLATE_OUT = new LongAdder();
+    static final LongAdder CACHE_HITS = new LongAdder();
+    static final LongAdder CACHE_MISSES = new LongAdder();
+    // Objects by delta chain length; the last bucket collects everything deeper
+    static final AtomicLongArray DELTA_DEPTHS = new AtomicLongArray(51);
+    
+    static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    static final long START = System.nanoTime();
+    static final Map<String, long[]> PHASES = new LinkedHashMap<>(); // name -> {wall ns, cpu ns}
+    
+    // Where the report goes: null (off), "stderr", or an absolute file path
+    static String target;
+    
+    // Strip --stats from the arguments; GIT_TRACE_PERFORMANCE works like git's trace variables
+    static String[] parseFlags(String[] args) {
+      String env = System.getenv("GIT_TRACE_PERFORMANCE");
+      if (env != null && !env.isEmpty() && !env.equals("0") && !env.equalsIgnoreCase("false")) {
+        target = env.startsWith("/") ? env : "stderr";
+      }
+      
+      List<String> rest = new ArrayList<>(Arrays.asList(args));
+      if (rest.remove("--stats")) {
+        target = "stderr";
+      }
+      return rest.toArray(new String[0]);
+    }
+    
+    static Phase begin(String name) {
+      return new Phase(name);
+    }
+    
+    // A timed phase on the current thread; close() records it
+    static class Phase implements AutoCloseable {
+      final String name;
+      final long wallStart = System.nanoTime();
+      final long cpuStart = THREADS.getCurrentThreadCpuTime();
+      final PhaseEvent event = jfr() ? new PhaseEvent() : null;
+      
+      Phase(String name) {
+        this.name = name;
+        if (event != null) event.begin();
+      }
+      
+      @Override
+      public void close() {
+        long wall = System.nanoTime() - wallStart;
+        long cpu = THREADS.getCurrentThreadCpuTime() - cpuStart;
+        synchronized (PHASES) {
+          long[] totals = PHASES.computeIfAbsent(name, k -> new long[2]);
+          totals[0] += wall;
+          totals[1] += cpu;
+        }
+        
+        if (event == null) return;
+        event.end();
+        if (event.shouldCommit()) {
+          event.phase = name;
+          event.cpuTime = cpu;
+          event.commit();
+        }
+      }
+    }
+    
+    // The first event instance initializes the whole JFR runtime, which costs more than a short
+    // command takes; without a recording running there is nothing to commit to anyway
+    static boolean jfr() {
+      return FlightRecorder.isInitialized();
+    }
+    
+    static void report() {
+      CountersEvent counters = jfr() ? new CountersEvent() : null;
+      if (counters != null && counters.shouldCommit()) {
+        counters.bytesReceived = BYTES_RECEIVED.sum();
+        counters.objects = OBJECTS.sum();
+        counters.inflateIn = INFLATE_IN.sum();
+        counters.inflateOut = INFLATE_OUT.sum();
+        counters.deflateIn = DEFLATE_IN.sum();
+        counters.deflateOut = DEFLATE_OUT.sum();
+        counters.cacheHits = CACHE_HITS.sum();
+        counters.cacheMisses = CACHE_MISSES.sum();
+        counters.commit();
+      }
+      
+      if (target == null) return;
+      
+      double seconds = (System.nanoTime() - START) / 1e9;
+      StringBuilder out = new StringBuilder();
+      synchronized (PHASES) {
+        for (Map.Entry<String, long[]> phase : PHASES.entrySet()) {
+          out.append(String.format("performance: %-18s wall %10.3f ms  cpu %10.3f ms%n",
+            phase.getKey(), phase.getValue()[0] / 1e6, phase.getValue()[1] / 1e6));
+        }
+      }
+      out.append(String.format("performance: %-18s %10.3f s%n", "total", seconds));
+      
+      long received = BYTES_RECEIVED.sum();
+      long objects = OBJECTS.sum();
+      if (received > 0) {
+        out.append(String.format("performance: bytes received %d (%.1f KiB/s)%n", received, received / 1024.0 / seconds));
+      }
+      if (objects > 0) {
+        out.append(String.format("performance: objects %d (%.0f/s)%n", objects, objects / seconds));
+      }
+      if (INFLATE_IN.sum() > 0) {
+        out.append(String.format("performance: inflate %d -> %d bytes%n", INFLATE_IN.sum(), INFLATE_OUT.sum()));
+      }
+      if (DEFLATE_IN.sum() > 0) {
+        out.append(String.format("performance: deflate %d -> %d bytes%n", DEFLATE_IN.sum(), DEFLATE_OUT.sum()));
+      }
+      long lookups = CACHE_HITS.sum() + CACHE_MISSES.sum();
+      if (lookups > 0) {
+        out.append(String.format("performance: delta base cache %d hits, %d misses (%.1f%% hit rate)%n",
+          CACHE_HITS.sum(), CACHE_MISSES.sum(), 100.0 * CACHE_HITS.sum() / lookups));
+      }
+      if (objects > 0) {
+        out.append("performance: delta chain depth");
+        for (int depth = 0; depth < DELTA_DEPTHS.length(); depth++) {
+          long count = DELTA_DEPTHS.get(depth);
+          if (count > 0) {
+            out.append(' ').append(depth).append(depth == DELTA_DEPTHS.length() - 1 ? "+:" : ":").append(count);
+          }
+        }
+        out.append(System.lineSeparator());
+      }
+      
+      if (target.equals("stderr")) {
+        System.err.print(out);
+      } else {
+        try {
+          Files.writeString(Paths.get(target), out, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+          System.err.println("Cannot write performance trace to " + target + ": " + e.getMessage());
+        }
+      }
+    }
+  }
+  
+  @Name("git.Phase")
+  @Label("Git Phase")
+  @Category("Git")
+  @Description("One phase of a command: discover-refs, fetch-pack, parse-pack, resolve-deltas, checkout, ...")
+  static class PhaseEvent extends Event {
+    @Label("Phase")
+    String phase;
+    
+    @Label("CPU Time")
+    @Timespan
+    long cpuTime;
+  }
+  
+  @Name("git.Counters")
+  @Label("Git Counters")
+  @Category("Git")
+  @Description("Totals for the command, emitted when it finishes")
+  static class CountersEvent extends Event {
+    @Label("Bytes Received")
+    @DataAmount
+    long bytesReceived;
+    
+    @Label("Objects")
+    long objects;
+    
+    @Label("Inflate Input")
+    @DataAmount
+    long inflateIn;
+    
+    @Label("Inflate Output")
+    @DataAmount
+    long inflateOut;
+    
+    @Label("Deflate Input")
+    @DataAmount
+    long deflateIn;
+    
+    @Label("Deflate Output")
+    @DataAmount
+    long deflateOut;
+    
+    @Label("Delta Base Cache Hits")
+    long cacheHits;
+    
+    @Label("Delta Base Cache Misses")
+    long cacheMisses;
   }
 }
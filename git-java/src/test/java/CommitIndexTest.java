@@ -0,0 +1,68 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CommitIndexTest {
+  @TempDir
+  Path repo;
+  
+  // one <- two, one <- side, merge = two + side, all committed in the same second. git's
+  // rev-list prints them merge, two, side, one: date ties come out in the order they were queued.
+  @Test
+  void revListOrderWithEqualDatesDoesNotDependOnCommitGraph() throws Exception {
+    File gitDir = repo.resolve(".git").toFile();
+    String tree = writeObject(gitDir, "tree", new byte[0]);
+    String one = commit(gitDir, tree, "one");
+    String two = commit(gitDir, tree, "two", one);
+    String side = commit(gitDir, tree, "side", one);
+    String merge = commit(gitDir, tree, "merge", two, side);
+    Files.createDirectories(repo.resolve(".git/refs/heads"));
+    Files.writeString(repo.resolve(".git/refs/heads/main"), merge + "\n");
+    Files.writeString(repo.resolve(".git/HEAD"), "ref: refs/heads/main\n");
+    
+    List<String> expected = List.of(merge, two, side, one);
+    assertEquals(expected, revList(gitDir, merge, -1));
+    assertEquals(expected.subList(0, 3), revList(gitDir, merge, 3));
+    
+    assertEquals(4, Main.CommitGraph.write(gitDir));
+    assertEquals(expected, revList(gitDir, merge, -1));
+    assertEquals(expected.subList(0, 3), revList(gitDir, merge, 3));
+  }
+  
+  static List<String> revList(File gitDir, String tip, int limit) throws Exception {
+    Main.CommitIndex index = new Main.CommitIndex(gitDir);
+    List<String> commits = new ArrayList<>();
+    index.revList(List.of(index.lookup(tip)), List.of(), limit, id -> commits.add(index.hash(id)));
+    return commits;
+  }
+  
+  static String commit(File gitDir, String tree, String message, String... parents) throws Exception {
+    StringBuilder content = new StringBuilder("tree " + tree + "\n");
+    for (String parent : parents) {
+      content.append("parent ").append(parent).append('\n');
+    }
+    content.append("author A <a@example.com> 1700000000 +0000\n");
+    content.append("committer A <a@example.com> 1700000000 +0000\n\n");
+    content.append(message).append('\n');
+    return writeObject(gitDir, "commit", content.toString().getBytes(StandardCharsets.UTF_8));
+  }
+  
+  static String writeObject(File gitDir, String type, byte[] content) throws Exception {
+    byte[] header = (type + " " + content.length + "\0").getBytes(StandardCharsets.US_ASCII);
+    byte[] object = new byte[header.length + content.length];
+    System.arraycopy(header, 0, object, 0, header.length);
+    System.arraycopy(content, 0, object, header.length, content.length);
+    String hash = Main.bytesToHex(MessageDigest.getInstance("SHA-1").digest(object));
+    Main.writeLooseObject(gitDir, hash, object);
+    return hash;
+  }
+}